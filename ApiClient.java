@@ -0,0 +1,652 @@
+package com.sugarsync.sample.tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file ApiClient.java
+ *
+ *       The HTTP client shared by all the SugarSync API calls of the tool.
+ *
+ *       Connections are kept alive and pooled per host by the JDK connection
+ *       cache; the pool size and the timeouts are set once with configure()
+ *       before the first request. Every response body is drained and closed
+ *       instead of disconnecting, so its connection goes back to the pool.
+ *
+ *       When a token manager is installed, requests are sent with its current
+ *       access token and a request rejected with a 401 is sent once more after
+ *       renewing the token. A thread working for another account can set
+ *       its own token manager and metadata cache with setAccount(); the
+ *       threads it starts inherit them.
+ *
+ *       All the requests go through the shared request scheduler, which paces
+ *       them and retries the ones that failed with a 429, a 5xx or an I/O
+ *       error (the last two only for idempotent requests).
+ *
+ *       The latency, failures and retries of every request are recorded in
+ *       the Telemetry.
+ *
+ *       HTTPS connections go through a counting socket factory, so the number
+ *       of requests, new connections and TLS handshakes can be reported to
+ *       see how many requests reused a connection.
+ */
+class ApiClient {
+
+    static final String USER_INFO_LINK = "https://api.sugarsync.com/user";
+
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    static final int DEFAULT_READ_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+
+    private static volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private static volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong connections = new AtomicLong();
+    private static final AtomicLong handshakes = new AtomicLong();
+    private static volatile TokenManager tokenManager;
+    private static volatile MetadataCache metadataCache;
+    private static final InheritableThreadLocal<TokenManager> accountTokenManager =
+            new InheritableThreadLocal<TokenManager>();
+    private static final InheritableThreadLocal<MetadataCache> accountMetadataCache =
+            new InheritableThreadLocal<MetadataCache>();
+    private static volatile RequestScheduler scheduler = new RequestScheduler(RequestScheduler.DEFAULT_MAX_RATE,
+            RequestScheduler.DEFAULT_MAX_RETRIES);
+    private static final CountingSSLSocketFactory SOCKET_FACTORY = new CountingSSLSocketFactory(
+            (SSLSocketFactory) SSLSocketFactory.getDefault());
+
+    private ApiClient() {
+    }
+
+    /**
+     * Sets the connection pool size and the timeouts. Must be called before
+     * the first request, as the JDK reads the pool size only once.
+     *
+     * @param maxConnectionsPerHost
+     *            the maximum number of idle connections kept per host
+     * @param connectTimeout
+     *            the connect timeout in milliseconds
+     * @param readTimeout
+     *            the read timeout in milliseconds
+     */
+    static void configure(int maxConnectionsPerHost, int connectTimeout, int readTimeout) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxConnectionsPerHost));
+        connectTimeoutMillis = connectTimeout;
+        readTimeoutMillis = readTimeout;
+    }
+
+    /**
+     * Installs the token manager that provides and renews the access token
+     *
+     * @param manager
+     *            the token manager
+     */
+    static void setTokenManager(TokenManager manager) {
+        tokenManager = manager;
+    }
+
+    /**
+     * Writes the headers and the body of a request, once per attempt
+     */
+    interface RequestWriter {
+        /**
+         * @param connection
+         *            the connection of the attempt, not yet connected
+         * @throws IOException
+         *             if any I/O error occurs
+         */
+        void write(HttpURLConnection connection) throws IOException;
+    }
+
+    /**
+     * Installs the scheduler that paces and retries the requests
+     *
+     * @param requestScheduler
+     *            the request scheduler
+     */
+    static void setRequestScheduler(RequestScheduler requestScheduler) {
+        scheduler = requestScheduler;
+    }
+
+    /**
+     * Installs the cache used by getMetadata()
+     *
+     * @param cache
+     *            the metadata cache
+     */
+    static void setMetadataCache(MetadataCache cache) {
+        metadataCache = cache;
+    }
+
+    /**
+     * Sets the token manager and the metadata cache used by the requests of
+     * the current thread, and of the threads it starts, instead of the
+     * installed ones
+     *
+     * @param manager
+     *            the token manager of the account, or null for the installed
+     *            one
+     * @param cache
+     *            the metadata cache of the account, or null for the
+     *            installed one
+     */
+    static void setAccount(TokenManager manager, MetadataCache cache) {
+        accountTokenManager.set(manager);
+        accountMetadataCache.set(cache);
+    }
+
+    private static TokenManager tokenManager() {
+        TokenManager manager = accountTokenManager.get();
+        return manager == null ? tokenManager : manager;
+    }
+
+    /**
+     * Returns the access token to send with a request
+     *
+     * @param accessToken
+     *            the access token known to the caller
+     * @return the current token of the token manager if one is installed,
+     *         otherwise the given token
+     */
+    private static String authorization(String accessToken) {
+        TokenManager manager = tokenManager();
+        if (manager == null || manager.currentAccessToken() == null) {
+            return accessToken;
+        }
+        return manager.currentAccessToken();
+    }
+
+    /**
+     * Renews the access token when a request was rejected with a 401, so the
+     * caller can send it again
+     *
+     * @param connection
+     *            the connection of the request
+     * @param status
+     *            the response status code
+     * @param sentToken
+     *            the access token sent with the request
+     * @return true if the request should be sent again with a new token
+     * @throws IOException
+     *             if the token cannot be renewed
+     */
+    private static boolean retryUnauthorized(HttpURLConnection connection, int status, String sentToken)
+            throws IOException {
+        TokenManager manager = tokenManager();
+        if (status != HttpURLConnection.HTTP_UNAUTHORIZED || manager == null) {
+            return false;
+        }
+        release(connection);
+        manager.refresh(sentToken);
+        return true;
+    }
+
+    /**
+     * Sends a request through the request scheduler and returns its
+     * connection once the response status is received. The request is sent
+     * again after renewing the access token on a 401, after the Retry-After
+     * delay or a backoff on a 429, and, if it is idempotent, after a backoff
+     * on a 5xx response or an I/O error.
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @param method
+     *            the HTTP method
+     * @param idempotent
+     *            true if the request can be sent twice without harm
+     * @param writer
+     *            writes the request headers and body, or null for none
+     * @return the connection of the last attempt; the caller reads or
+     *         releases the response
+     * @throws IOException
+     *             if any I/O error occurs on the last attempt
+     */
+    static HttpURLConnection execute(String link, String accessToken, String method, boolean idempotent,
+            RequestWriter writer) throws IOException {
+        RequestScheduler requestScheduler = scheduler;
+        String endpoint = endpointOf(link);
+        String metricName = metricNameOf(method, link, endpoint);
+        int attempt = 0;
+        boolean renewed = false;
+        // a request let through the circuit is retried without checking it
+        // again
+        boolean trial = requestScheduler.checkCircuit(endpoint);
+        try {
+            while (true) {
+                long queued = System.nanoTime();
+                requestScheduler.acquire();
+                Telemetry.recordQueueWait("ratelimit", System.nanoTime() - queued);
+                String token = authorization(accessToken);
+                long start = System.nanoTime();
+                HttpURLConnection connection = openConnection(link, token, method);
+                int status;
+                try {
+                    if (writer != null) {
+                        writer.write(connection);
+                    }
+                    status = connection.getResponseCode();
+                } catch (IOException e) {
+                    Telemetry.recordRequest(metricName, System.nanoTime() - start, true);
+                    requestScheduler.onFailure(endpoint);
+                    if (!idempotent || attempt >= requestScheduler.getMaxRetries() || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    Telemetry.recordRetry(metricName);
+                    requestScheduler.backoff(attempt++, 0);
+                    continue;
+                }
+                Telemetry.recordRequest(metricName, System.nanoTime() - start, status == 429 || status >= 500);
+
+                if (!renewed && retryUnauthorized(connection, status, token)) {
+                    renewed = true;
+                    Telemetry.recordRetry(metricName);
+                    continue;
+                }
+                if (status == 429) {
+                    // the server refused the request before handling it
+                    long retryAfter = retryAfterMillis(connection);
+                    requestScheduler.onThrottled(retryAfter);
+                    if (attempt < requestScheduler.getMaxRetries()) {
+                        release(connection);
+                        Telemetry.recordRetry(metricName);
+                        requestScheduler.backoff(attempt++, retryAfter);
+                        continue;
+                    }
+                } else if (status >= 500) {
+                    requestScheduler.onFailure(endpoint);
+                    if (idempotent && attempt < requestScheduler.getMaxRetries()) {
+                        long retryAfter = retryAfterMillis(connection);
+                        release(connection);
+                        Telemetry.recordRetry(metricName);
+                        requestScheduler.backoff(attempt++, retryAfter);
+                        continue;
+                    }
+                } else {
+                    requestScheduler.onSuccess(endpoint);
+                }
+                return connection;
+            }
+        } finally {
+            if (trial) {
+                requestScheduler.endTrial(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Opens an authorized connection to the given API link
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @param method
+     *            the HTTP method
+     * @return the connection, not yet connected
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static HttpURLConnection openConnection(String link, String accessToken, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(link).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(SOCKET_FACTORY);
+        }
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Authorization", accessToken);
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setInstanceFollowRedirects(true);
+        requests.incrementAndGet();
+        return connection;
+    }
+
+    /**
+     * Makes a HTTP GET request and reads the whole response body. Used for
+     * the small xml representations, not for file data.
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @return the response, also for error status codes
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static HttpResponse get(String link, String accessToken) throws IOException {
+        return get(link, accessToken, new Header[0]);
+    }
+
+    /**
+     * Makes a HTTP GET request with additional request headers, such as the
+     * conditions of a revalidation
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @param requestHeaders
+     *            the headers added to the request
+     * @return the response, also for error status codes
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static HttpResponse get(String link, String accessToken, final Header[] requestHeaders) throws IOException {
+        HttpURLConnection connection = execute(link, accessToken, "GET", true, new RequestWriter() {
+            public void write(HttpURLConnection connection) {
+                for (Header header : requestHeaders) {
+                    connection.setRequestProperty(header.getName(), header.getValue());
+                }
+            }
+        });
+        int status = connection.getResponseCode();
+        InputStream in = status > 299 ? connection.getErrorStream() : connection.getInputStream();
+        String body = "";
+        if (in != null) {
+            try {
+                body = new String(readFully(in), "UTF-8");
+            } finally {
+                in.close();
+            }
+        }
+        return new HttpResponse(status, body, headers(connection));
+    }
+
+    /**
+     * Makes a HTTP GET request for the representation of a user, share or
+     * folder, going through the metadata cache when one is installed
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @return the response, also for error status codes
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static HttpResponse getMetadata(String link, String accessToken) throws IOException {
+        MetadataCache cache = accountMetadataCache.get();
+        if (cache == null) {
+            cache = metadataCache;
+        }
+        return cache == null ? get(link, accessToken) : cache.get(link, accessToken);
+    }
+
+    /**
+     * Reads what is left of the response body and closes it, so the
+     * connection can be reused by the next request to the same host
+     *
+     * @param connection
+     *            a connection whose response was received
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getResponseCode() > 299 ? connection.getErrorStream()
+                    : connection.getInputStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+                    while (in.read(buffer) != -1) {
+                        // discard
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            // the connection will not be reused
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Prints the number of requests, new connections and TLS handshakes made
+     * so far
+     */
+    static void printMetrics() {
+        long requestCount = requests.get();
+        long connectionCount = connections.get();
+        long reused = Math.max(0, requestCount - connectionCount);
+        System.out.println("\n---CONNECTION STATS---");
+        System.out.println("Requests: " + requestCount);
+        System.out.println("New connections: " + connectionCount);
+        System.out.println("TLS handshakes: " + handshakes.get());
+        System.out.println("Requests on a reused connection: " + reused
+                + (requestCount == 0 ? "" : " (" + (100 * reused / requestCount) + "%)"));
+        scheduler.printMetrics();
+    }
+
+    /**
+     * Returns the endpoint a request counts against for circuit breaking: the
+     * host and the first element of the path
+     */
+    private static String endpointOf(String link) {
+        try {
+            URL url = new URL(link);
+            String path = url.getPath();
+            int end = path.indexOf('/', 1);
+            return url.getHost() + (end == -1 ? path : path.substring(0, end));
+        } catch (MalformedURLException e) {
+            return link;
+        }
+    }
+
+    /**
+     * Returns the name the latency of a request is recorded under: the method,
+     * the endpoint and whether the request transfers file data
+     */
+    private static String metricNameOf(String method, String link, String endpoint) {
+        try {
+            if (new URL(link).getPath().endsWith("/data")) {
+                return method + " " + endpoint + "/data";
+            }
+        } catch (MalformedURLException e) {
+            // fall through, endpointOf kept the whole link
+        }
+        return method + " " + endpoint;
+    }
+
+    /**
+     * Reads the Retry-After header, either a number of seconds or a date
+     *
+     * @return the delay in milliseconds, or 0 if there is none
+     */
+    private static long retryAfterMillis(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                return 0;
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Header[] headers(HttpURLConnection connection) {
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+            if (field.getKey() == null) {
+                continue; // status line
+            }
+            for (String value : field.getValue()) {
+                headers.add(new BasicHeader(field.getKey(), value));
+            }
+        }
+        return headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * Creates a resource (file or folder) by posting its xml representation
+     * to a folder link
+     *
+     * @param folderLink
+     *            the link of the parent folder
+     * @param accessToken
+     *            the access token
+     * @param xml
+     *            the representation of the new resource
+     * @return the link of the created resource
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects the request
+     */
+    static String create(String folderLink, String accessToken, String xml) throws IOException {
+        final byte[] body = xml.getBytes("UTF-8");
+        HttpURLConnection connection = execute(folderLink, accessToken, "POST", false, new RequestWriter() {
+            public void write(HttpURLConnection connection) throws IOException {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/xml; charset=UTF-8");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        int status = connection.getResponseCode();
+        String location = connection.getHeaderField("Location");
+        release(connection);
+        if (status > 299 || location == null) {
+            throw new IOException("HTTP " + status + " while creating a resource in " + folderLink);
+        }
+        return location;
+    }
+
+    /**
+     * Returns the representation of a new file
+     *
+     * @param displayName
+     *            the remote file name
+     */
+    static String fileXml(String displayName) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?><file><displayName>" + escapeXml(displayName)
+                + "</displayName><mediaType></mediaType></file>";
+    }
+
+    /**
+     * Returns the representation of a new folder
+     *
+     * @param displayName
+     *            the remote folder name
+     */
+    static String folderXml(String displayName) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?><folder><displayName>" + escapeXml(displayName)
+                + "</displayName></folder>";
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Counts the sockets created for HTTPS connections and their TLS
+     * handshakes. The same instance is used for every connection, which keeps
+     * the connections poolable by the JDK keep-alive cache.
+     */
+    private static class CountingSSLSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final HandshakeCompletedListener listener = new HandshakeCompletedListener() {
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                handshakes.incrementAndGet();
+            }
+        };
+
+        private CountingSSLSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            connections.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).addHandshakeCompletedListener(listener);
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return count(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
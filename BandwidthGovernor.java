@@ -0,0 +1,273 @@
+package com.sugarsync.sample.tool;
+
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file BandwidthGovernor.java
+ *
+ *       Caps the bandwidth used by all the downloads and uploads of the tool
+ *       together.
+ *
+ *       The streaming copy loops ask for every buffer they move, so the
+ *       transfers are slowed down evenly, a buffer at a time, instead of
+ *       stopping and bursting. The cap can change with the time of day: a
+ *       schedule of daily windows ("08:00-18:00=1m") overrides the default
+ *       cap while a window is open.
+ *
+ *       When the cap is reached the waiting buffers are served in weighted
+ *       fair order (self-clocked fair queueing): every job is a flow with a
+ *       weight, and a flow with twice the weight of another gets twice its
+ *       bandwidth, whatever the number of connections each one uses. The
+ *       flow of a job is inherited by the threads it starts.
+ */
+class BandwidthGovernor {
+
+    static final long UNLIMITED = 0;
+
+    // bandwidth left unused for this long can still be used in a burst
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final Flow DEFAULT_FLOW = new Flow("default", 1);
+
+    private static volatile BandwidthGovernor installed;
+
+    private static final InheritableThreadLocal<Flow> currentFlow = new InheritableThreadLocal<Flow>() {
+        @Override
+        protected Flow initialValue() {
+            return DEFAULT_FLOW;
+        }
+    };
+
+    private final long defaultRate;
+    private final List<Window> windows;
+
+    private final PriorityQueue<Request> waiting = new PriorityQueue<Request>();
+    private long nextFree = System.nanoTime();
+    private double virtualTime;
+    private long sequence;
+
+    /**
+     * @param defaultRate
+     *            the cap in bytes per second outside of the windows, or
+     *            UNLIMITED
+     * @param schedule
+     *            the daily windows, "HH:MM-HH:MM=<rate>" separated by commas,
+     *            or null
+     * @throws IllegalArgumentException
+     *             if the schedule is not valid
+     */
+    BandwidthGovernor(long defaultRate, String schedule) {
+        this.defaultRate = defaultRate;
+        this.windows = parseSchedule(schedule);
+    }
+
+    /**
+     * Installs the governor used by all the transfers, null for none
+     */
+    static void install(BandwidthGovernor governor) {
+        installed = governor;
+    }
+
+    /**
+     * Sets the flow the transfers of the current thread, and of the threads
+     * it starts, are accounted to
+     *
+     * @param flow
+     *            the flow, or null for the default flow
+     */
+    static void setFlow(Flow flow) {
+        currentFlow.set(flow == null ? DEFAULT_FLOW : flow);
+    }
+
+    /**
+     * Waits until the bytes about to be moved fit the bandwidth cap. Called
+     * by the copy loops for every buffer.
+     *
+     * @param bytes
+     *            the number of bytes
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    static void throttle(int bytes) throws InterruptedIOException {
+        BandwidthGovernor governor = installed;
+        if (governor != null && bytes > 0) {
+            governor.acquire(currentFlow.get(), bytes);
+        }
+    }
+
+    /**
+     * Returns the cap in force at the given time of day
+     */
+    long rateAt(LocalTime time) {
+        for (Window window : windows) {
+            if (window.contains(time)) {
+                return window.rate;
+            }
+        }
+        return defaultRate;
+    }
+
+    private void acquire(Flow flow, int bytes) throws InterruptedIOException {
+        if (rateAt(LocalTime.now()) == UNLIMITED) {
+            return;
+        }
+        long queued = System.nanoTime();
+        boolean waited = false;
+        synchronized (this) {
+            double start = Math.max(virtualTime, flow.finish);
+            Request request = new Request(start + bytes / flow.weight, sequence++);
+            flow.finish = request.finish;
+            waiting.add(request);
+            try {
+                while (true) {
+                    long rate = rateAt(LocalTime.now());
+                    if (waiting.peek() == request) {
+                        long now = System.nanoTime();
+                        if (rate == UNLIMITED) {
+                            break;
+                        }
+                        long earliest = Math.max(nextFree, now - BURST_NANOS);
+                        if (earliest - now <= 0) {
+                            nextFree = earliest + (long) (bytes * 1e9 / rate);
+                            break;
+                        }
+                        waited = true;
+                        // wake up in time for the cap, and to see a window change
+                        wait(Math.min(1000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest - now))));
+                    } else {
+                        waited = true;
+                        wait(1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            } finally {
+                waiting.remove(request);
+                notifyAll();
+            }
+            // the virtual time is the finish time of the buffer last served
+            virtualTime = Math.max(virtualTime, request.finish);
+        }
+        if (waited) {
+            Telemetry.recordQueueWait("bandwidth", System.nanoTime() - queued);
+        }
+    }
+
+    /**
+     * Parses a rate in bytes per second, with an optional k, m or g suffix
+     *
+     * @throws IllegalArgumentException
+     *             if the rate is not valid
+     */
+    static long parseRate(String rate) {
+        String value = rate.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024L;
+        } else if (value.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (value.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long parsed = Long.parseLong(value) * unit;
+        if (parsed < 0) {
+            throw new IllegalArgumentException("Invalid rate " + rate);
+        }
+        return parsed;
+    }
+
+    private static List<Window> parseSchedule(String schedule) {
+        List<Window> windows = new ArrayList<Window>();
+        if (schedule == null || schedule.trim().length() == 0) {
+            return windows;
+        }
+        for (String entry : schedule.split(",")) {
+            int equals = entry.indexOf('=');
+            int dash = entry.indexOf('-');
+            if (equals == -1 || dash == -1 || dash > equals) {
+                throw new IllegalArgumentException("Invalid bandwidth window " + entry
+                        + ", expected HH:MM-HH:MM=<rate>");
+            }
+            try {
+                windows.add(new Window(LocalTime.parse(entry.substring(0, dash).trim()),
+                        LocalTime.parse(entry.substring(dash + 1, equals).trim()),
+                        parseRate(entry.substring(equals + 1))));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid bandwidth window " + entry + ": " + e.getMessage());
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * The transfers of a job, sharing the bandwidth with the other jobs in
+     * proportion to its weight
+     */
+    static class Flow {
+        final String name;
+        final double weight;
+        // virtual finish time of the last buffer of the flow
+        private double finish;
+
+        Flow(String name, double weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Invalid weight " + weight);
+            }
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A buffer waiting for bandwidth, served in virtual finish time order
+     */
+    private static class Request implements Comparable<Request> {
+        private final double finish;
+        private final long sequence;
+
+        private Request(double finish, long sequence) {
+            this.finish = finish;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Request other) {
+            if (finish != other.finish) {
+                return finish < other.finish ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A daily time window with its own cap; a window ending before it starts
+     * spans midnight
+     */
+    private static class Window {
+        private final LocalTime from;
+        private final LocalTime to;
+        private final long rate;
+
+        private Window(LocalTime from, LocalTime to, long rate) {
+            this.from = from;
+            this.to = to;
+            this.rate = rate;
+        }
+
+        private boolean contains(LocalTime time) {
+            if (from.isBefore(to)) {
+                return !time.isBefore(from) && time.isBefore(to);
+            }
+            return !time.isBefore(from) || time.isBefore(to);
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @file BatchRunner.java
+ *
+ *       Runs the jobs of a job file, for several accounts and shares, in one
+ *       process.
+ *
+ *       The job file has one entry per line; blank lines and lines starting
+ *       with # are skipped, and words containing spaces are double quoted:
+ *
+ *       account <name> <username> <password>
+ *
+ *       [-account <name>] [-share <share>] [-dir <dir>] <command> [<arguments>]
+ *
+ *       A job without -account runs for the user of the command line, and
+ *       without -share in the share of the command line. Every account is
+ *       authorized once, before its first job, and keeps its access token
+ *       renewed and its own metadata cache for all its jobs.
+ *
+ *       A job downloads into its -dir, by default "<account>/<share>" below
+ *       the working directory, so the files of two shares with the same name
+ *       never meet. Jobs with the same directory run one after another, so
+ *       they never write the same part file at the same time.
+ *
+ *       A fixed number of jobs run at the same time. The accounts take turns:
+ *       the next job is taken from the account with the fewest running jobs
+ *       (the one served least recently on a tie), so an account with many
+ *       jobs does not hold back the others, and the jobs of an account share
+ *       one bandwidth flow. The output of a job is printed in one block when
+ *       it ends.
+ */
+class BatchRunner {
+
+    static final String DEFAULT_ACCOUNT = "default";
+
+    private static final String ACCOUNT_KEYWORD = "account";
+    private static final String ACCOUNT_PARAM = "-account";
+    private static final String SHARE_PARAM = "-share";
+    private static final String DIR_PARAM = "-dir";
+
+    /**
+     * Runs one tool command
+     */
+    interface CommandRunner {
+        /**
+         * @param accessToken
+         *            the access token of the account of the job
+         * @param share
+         *            the received share the command works in
+         * @param directory
+         *            the local directory the command downloads into
+         * @param command
+         *            the command name
+         * @param arguments
+         *            the command arguments
+         * @return the exit status
+         * @throws Exception
+         *             if the command fails
+         */
+        int run(String accessToken, String share, File directory, String command, List<String> arguments)
+                throws Exception;
+    }
+
+    /**
+     * Creates the token manager of an account of the job file
+     */
+    interface AccountOpener {
+        /**
+         * @param name
+         *            the account name in the job file
+         * @param username
+         *            SugarSync username (email address)
+         * @param password
+         *            SugarSync password
+         * @return the token manager, not yet authorized
+         */
+        TokenManager open(String name, String username, String password);
+    }
+
+    private final int concurrency;
+    private final long metadataTtlMillis;
+    private final AccountOpener opener;
+    private final CommandRunner runner;
+
+    private final Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+    private final List<Job> jobs = new ArrayList<Job>();
+    // directories of the running jobs
+    private final Set<File> busyDirectories = new HashSet<File>();
+    private long turns;
+    private int failed;
+
+    /**
+     * @param concurrency
+     *            the maximum number of jobs running at the same time
+     * @param metadataTtlMillis
+     *            how long the metadata of an account is used without
+     *            revalidation
+     * @param defaultAccessToken
+     *            the access token of the user of the command line
+     * @param opener
+     *            creates the token managers of the accounts of the job file
+     * @param runner
+     *            runs the commands of the jobs
+     */
+    BatchRunner(int concurrency, long metadataTtlMillis, String defaultAccessToken, AccountOpener opener,
+            CommandRunner runner) {
+        this.concurrency = Math.max(1, concurrency);
+        this.metadataTtlMillis = metadataTtlMillis;
+        this.opener = opener;
+        this.runner = runner;
+        Account user = new Account(DEFAULT_ACCOUNT, null, null);
+        user.accessToken = defaultAccessToken;
+        accounts.put(DEFAULT_ACCOUNT, user);
+    }
+
+    /**
+     * Reads the accounts and the jobs of a job file
+     *
+     * @param jobFile
+     *            the job file
+     * @param defaultShare
+     *            the share of the jobs without -share
+     * @throws IOException
+     *             if the file cannot be read
+     * @throws IllegalArgumentException
+     *             if a line is not valid
+     */
+    void load(File jobFile, String defaultShare) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(jobFile), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                List<String> words = DaemonServer.split(line);
+                if (words.isEmpty() || words.get(0).startsWith("#")) {
+                    continue;
+                }
+                if (ACCOUNT_KEYWORD.equals(words.get(0))) {
+                    if (words.size() != 4) {
+                        throw new IllegalArgumentException("Line " + number
+                                + ": expected account <name> <username> <password>");
+                    }
+                    if (accounts.containsKey(words.get(1))) {
+                        throw new IllegalArgumentException("Line " + number + ": account " + words.get(1)
+                                + " is already defined");
+                    }
+                    accounts.put(words.get(1), new Account(words.get(1), words.get(2), words.get(3)));
+                    continue;
+                }
+
+                String account = DEFAULT_ACCOUNT;
+                String share = defaultShare;
+                String directory = null;
+                while (words.size() >= 2 && (ACCOUNT_PARAM.equals(words.get(0)) || SHARE_PARAM.equals(words.get(0))
+                        || DIR_PARAM.equals(words.get(0)))) {
+                    if (ACCOUNT_PARAM.equals(words.get(0))) {
+                        account = words.get(1);
+                    } else if (SHARE_PARAM.equals(words.get(0))) {
+                        share = words.get(1);
+                    } else {
+                        directory = words.get(1);
+                    }
+                    words = words.subList(2, words.size());
+                }
+                if (words.isEmpty()) {
+                    throw new IllegalArgumentException("Line " + number + ": no command");
+                }
+                if (!accounts.containsKey(account)) {
+                    throw new IllegalArgumentException("Line " + number + ": account " + account
+                            + " is not defined above");
+                }
+                File jobDirectory = directory != null ? new File(directory) : new File(account, share);
+                Job job = new Job(number, accounts.get(account), share, jobDirectory.getAbsoluteFile().toPath()
+                        .normalize().toFile(), words.get(0), new ArrayList<String>(words.subList(1, words.size())));
+                jobs.add(job);
+                job.account.pending.add(job);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs all the jobs and prints a summary
+     *
+     * @return the number of jobs which failed
+     * @throws InterruptedException
+     *             if the thread is interrupted while the jobs run
+     */
+    int run() throws InterruptedException {
+        authorize();
+        System.out.println("Running " + jobs.size() + " jobs, " + concurrency + " at a time");
+        DaemonServer.JobOutput.install();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    Job job;
+                    while ((job = next()) != null) {
+                        runJob(job);
+                    }
+                }
+            }, "batch-worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (Account account : accounts.values()) {
+            if (account.tokenManager != null) {
+                account.tokenManager.stopRefresher();
+            }
+        }
+
+        System.out.println("\n---BATCH SUMMARY---");
+        DecimalFormat format = new DecimalFormat("#.###");
+        for (Job job : jobs) {
+            System.out.println("Line " + job.line + " " + job.describe() + ": " + (job.failed ? "FAILED" : "exit "
+                    + job.status) + " in " + format.format(job.nanos / 1e9) + " s");
+        }
+        System.out.println(jobs.size() + " jobs, " + failed + " failed");
+        return failed;
+    }
+
+    /**
+     * Authorizes the accounts with jobs. The jobs of an account which cannot
+     * be authorized fail.
+     */
+    private void authorize() {
+        for (Account account : accounts.values()) {
+            if (account.username == null || account.pending.isEmpty()) {
+                continue;
+            }
+            TokenManager tokenManager = opener.open(account.name, account.username, account.password);
+            try {
+                account.accessToken = tokenManager.getAccessToken();
+                tokenManager.startRefresher();
+                account.tokenManager = tokenManager;
+                account.metadataCache = new MetadataCache(account.username, metadataTtlMillis,
+                        MetadataCache.DEFAULT_MAX_ENTRIES);
+            } catch (IOException e) {
+                System.out.println("Account " + account.name + " could not be authorized: " + e.getMessage());
+                for (Job job : account.pending) {
+                    job.failed = true;
+                    failed++;
+                }
+                account.pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Takes the next job, from the account with the fewest running jobs,
+     * skipping the jobs whose directory is used by a running job. Waits
+     * while only such jobs are left.
+     *
+     * @return the job, or null when none is left
+     */
+    private synchronized Job next() {
+        while (true) {
+            Account next = null;
+            Job nextJob = null;
+            boolean pending = false;
+            for (Account account : accounts.values()) {
+                Job job = firstRunnable(account);
+                pending |= !account.pending.isEmpty();
+                if (job == null) {
+                    continue;
+                }
+                if (next == null || account.running < next.running
+                        || (account.running == next.running && account.lastTurn < next.lastTurn)) {
+                    next = account;
+                    nextJob = job;
+                }
+            }
+            if (next != null) {
+                next.running++;
+                next.lastTurn = ++turns;
+                next.pending.remove(nextJob);
+                busyDirectories.add(nextJob.directory);
+                return nextJob;
+            }
+            if (!pending) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the first pending job of an account whose directory is free
+     */
+    private Job firstRunnable(Account account) {
+        Iterator<Job> pending = account.pending.iterator();
+        while (pending.hasNext()) {
+            Job job = pending.next();
+            if (!busyDirectories.contains(job.directory)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void done(Job job, boolean jobFailed) {
+        job.account.running--;
+        busyDirectories.remove(job.directory);
+        if (jobFailed) {
+            failed++;
+        }
+        notifyAll();
+    }
+
+    private void runJob(Job job) {
+        Telemetry.recordQueueWait("batch", System.nanoTime() - job.queuedAt);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buffer, true);
+        DaemonServer.JobOutput.set(out);
+        ApiClient.setAccount(job.account.tokenManager, job.account.metadataCache);
+        BandwidthGovernor.setFlow(job.account.flow);
+        long start = System.nanoTime();
+        try {
+            job.status = runner.run(job.account.accessToken, job.share, job.directory, job.command, job.arguments);
+        } catch (ToolExitException e) {
+            job.status = e.status;
+            job.failed = true;
+        } catch (Exception e) {
+            e.printStackTrace(out);
+            job.failed = true;
+        } finally {
+            job.nanos = System.nanoTime() - start;
+            DaemonServer.JobOutput.set(null);
+            ApiClient.setAccount(null, null);
+            BandwidthGovernor.setFlow(null);
+        }
+        done(job, job.failed);
+
+        out.flush();
+        synchronized (System.out) {
+            System.out.println("\n---LINE " + job.line + " " + job.describe() + "---");
+            System.out.print(buffer.toString());
+            System.out.flush();
+        }
+    }
+
+    /**
+     * An account of the job file, with its pending jobs
+     */
+    private static class Account {
+        final String name;
+        final String username;
+        final String password;
+        final BandwidthGovernor.Flow flow;
+        final ArrayDeque<Job> pending = new ArrayDeque<Job>();
+
+        // set when the account is authorized, null for the user of the
+        // command line
+        TokenManager tokenManager;
+        MetadataCache metadataCache;
+        String accessToken;
+
+        int running;
+        long lastTurn;
+
+        Account(String name, String username, String password) {
+            this.name = name;
+            this.username = username;
+            this.password = password;
+            this.flow = new BandwidthGovernor.Flow("account " + name, 1);
+        }
+    }
+
+    /**
+     * A command of the job file
+     */
+    private static class Job {
+        final int line;
+        final Account account;
+        final String share;
+        final File directory;
+        final String command;
+        final List<String> arguments;
+        final long queuedAt = System.nanoTime();
+
+        int status;
+        boolean failed;
+        long nanos;
+
+        Job(int line, Account account, String share, File directory, String command, List<String> arguments) {
+            this.line = line;
+            this.account = account;
+            this.share = share;
+            this.directory = directory;
+            this.command = command;
+            this.arguments = arguments;
+        }
+
+        String describe() {
+            StringBuilder description = new StringBuilder(account.name).append(" ").append(share).append(" ")
+                    .append(command);
+            for (String argument : arguments) {
+                description.append(" ").append(argument);
+            }
+            return description.toString();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file ChangePoller.java
+ *
+ *       Finds the files and folders added, modified or removed in a remote
+ *       folder tree since the previous poll, and hands them to the
+ *       subscribed listeners.
+ *
+ *       The listings of the previous poll are kept in a RemoteIndex. A known
+ *       folder is first revalidated with a conditional GET per page of its
+ *       listing (If-None-Match / If-Modified-Since): when every page answers
+ *       304 the folder did not change, no body is transferred and only its
+ *       sub folders are visited. Otherwise, and for new folders or when the
+ *       server sends no validators, the folder is listed again and compared
+ *       with the index. A removed folder removes its whole known subtree.
+ *
+ *       Folders are polled with a bounded pool of concurrent requests, like
+ *       the FolderCrawler. The first poll of a tree reports every entry as
+ *       added.
+ */
+class ChangePoller {
+
+    static final String ADDED = "added";
+    static final String MODIFIED = "modified";
+    static final String REMOVED = "removed";
+
+    /**
+     * A change found by a poll
+     */
+    static class Change {
+        final String type;
+        final String path;
+        // the new entry, or the last known one for a removal
+        final RemoteEntry entry;
+
+        Change(String type, String path, RemoteEntry entry) {
+            this.type = type;
+            this.path = path;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Receives the changes. Called from the poller threads, so
+     * implementations must be thread safe.
+     */
+    interface Listener {
+        /**
+         * @param change
+         *            the change, with the path relative to the polled folder
+         */
+        void onChange(Change change);
+    }
+
+    private final String accessToken;
+    private final RemoteIndex index;
+    private final int parallelism;
+    private final int pageSize;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private ExecutorService executor;
+    private final Object lock = new Object();
+    private int pending;
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong listed = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param index
+     *            the listings of the previous polls, updated by every poll
+     * @param parallelism
+     *            the maximum number of concurrent requests
+     * @param pageSize
+     *            the maximum number of entries requested at a time from a
+     *            folder listing
+     */
+    ChangePoller(String accessToken, RemoteIndex index, int parallelism, int pageSize) {
+        this.accessToken = accessToken;
+        this.index = index;
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Adds a listener to the changes of the next polls
+     */
+    void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener
+     */
+    void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Polls a folder tree once and waits for the poll to finish. The index
+     * is updated folder by folder as the changes are reported, so it stays
+     * consistent with what the listeners received even if the poll fails.
+     *
+     * @param folderLink
+     *            the link of the root folder representation
+     * @return the number of changes found
+     * @throws IOException
+     *             if any request fails
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    long poll(String folderLink) throws IOException, InterruptedException {
+        unchanged.set(0);
+        listed.set(0);
+        changes.set(0);
+        failure.set(null);
+        executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            submitFolder(folderLink, "");
+            synchronized (lock) {
+                while (pending > 0) {
+                    lock.wait();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+        return changes.get();
+    }
+
+    /**
+     * Prints the folders revalidated and listed by the last poll
+     */
+    void printSummary() {
+        System.out.println("Polled " + (unchanged.get() + listed.get()) + " folders: " + unchanged.get()
+                + " unchanged, " + listed.get() + " listed, " + changes.get() + " changes");
+    }
+
+    private void submitFolder(final String folderLink, final String prefix) {
+        submit(new Runnable() {
+            public void run() {
+                try {
+                    pollFolder(folderLink, prefix);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+    }
+
+    private void pollFolder(String folderLink, String prefix) throws IOException {
+        RemoteIndex.Folder known = index.get(folderLink);
+        if (known != null && known.pageSize == pageSize && isUnchanged(known)) {
+            unchanged.incrementAndGet();
+            for (Map.Entry<String, String> folder : known.folders.entrySet()) {
+                submitFolder(folder.getValue(), prefix + folder.getKey() + "/");
+            }
+            return;
+        }
+
+        String contentsLink = known != null ? known.contentsLink : FolderRecord.parse(get(folderLink)).contents;
+        Map<String, RemoteEntry> files = new TreeMap<String, RemoteEntry>();
+        Map<String, RemoteEntry> folders = new TreeMap<String, RemoteEntry>();
+        CollectionContentsReader contents = new CollectionContentsReader(contentsLink, accessToken, pageSize);
+        List<CollectionContentsReader.Page> pages;
+        try {
+            RemoteEntry entry;
+            while ((entry = contents.next()) != null) {
+                (entry.collection ? folders : files).put(entry.displayName, entry);
+            }
+            pages = new ArrayList<CollectionContentsReader.Page>(contents.getPages());
+        } finally {
+            contents.close();
+        }
+        listed.incrementAndGet();
+
+        Map<String, RemoteEntry> knownFiles = known == null ? new TreeMap<String, RemoteEntry>() : known.files;
+        Map<String, String> knownFolders = known == null ? new TreeMap<String, String>() : known.folders;
+        for (RemoteEntry file : files.values()) {
+            RemoteEntry before = knownFiles.get(file.displayName);
+            if (before == null) {
+                emit(ADDED, prefix + file.displayName, file);
+            } else if (before.size != file.size || !equal(before.lastModified, file.lastModified)
+                    || !equal(before.ref, file.ref)) {
+                emit(MODIFIED, prefix + file.displayName, file);
+            }
+        }
+        for (RemoteEntry file : knownFiles.values()) {
+            if (!files.containsKey(file.displayName)) {
+                emit(REMOVED, prefix + file.displayName, file);
+            }
+        }
+        Map<String, String> folderLinks = new TreeMap<String, String>();
+        for (RemoteEntry folder : folders.values()) {
+            String before = knownFolders.get(folder.displayName);
+            if (before != null && !before.equals(folder.ref)) {
+                // replaced by another folder of the same name
+                removeTree(before, prefix + folder.displayName + "/");
+                before = null;
+            }
+            if (before == null) {
+                emit(ADDED, prefix + folder.displayName, folder);
+            }
+            folderLinks.put(folder.displayName, folder.ref);
+        }
+        for (Map.Entry<String, String> folder : knownFolders.entrySet()) {
+            if (!folders.containsKey(folder.getKey())) {
+                removeTree(folder.getValue(), prefix + folder.getKey() + "/");
+                emit(REMOVED, prefix + folder.getKey(), new RemoteEntry(true, folder.getKey(), folder.getValue(), 0,
+                        null, null, null));
+            }
+        }
+        index.put(folderLink, new RemoteIndex.Folder(contentsLink, pageSize, pages, files, folderLinks));
+
+        for (Map.Entry<String, String> folder : folderLinks.entrySet()) {
+            submitFolder(folder.getValue(), prefix + folder.getKey() + "/");
+        }
+    }
+
+    /**
+     * Revalidates every page of a known listing
+     *
+     * @return true if all the pages answered 304 Not Modified
+     */
+    private boolean isUnchanged(RemoteIndex.Folder known) throws IOException {
+        if (!known.hasValidators()) {
+            return false;
+        }
+        for (CollectionContentsReader.Page page : known.pages) {
+            List<Header> conditions = new ArrayList<Header>();
+            if (page.etag != null) {
+                conditions.add(new BasicHeader("If-None-Match", page.etag));
+            }
+            if (page.lastModified != null) {
+                conditions.add(new BasicHeader("If-Modified-Since", page.lastModified));
+            }
+            HttpResponse response = ApiClient.get(CollectionContentsReader.pageLink(known.contentsLink, page.start,
+                    known.pageSize), accessToken, conditions.toArray(new Header[conditions.size()]));
+            if (response.getHttpStatusCode() != 304) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reports the known files and folders below a removed folder as removed
+     * and forgets their listings
+     */
+    private void removeTree(String folderLink, String prefix) {
+        RemoteIndex.Folder known = index.get(folderLink);
+        if (known == null) {
+            return;
+        }
+        for (RemoteEntry file : known.files.values()) {
+            emit(REMOVED, prefix + file.displayName, file);
+        }
+        for (Map.Entry<String, String> folder : known.folders.entrySet()) {
+            removeTree(folder.getValue(), prefix + folder.getKey() + "/");
+            emit(REMOVED, prefix + folder.getKey(), new RemoteEntry(true, folder.getKey(), folder.getValue(), 0, null,
+                    null, null));
+        }
+        index.remove(folderLink);
+    }
+
+    private void emit(String type, String path, RemoteEntry entry) {
+        changes.incrementAndGet();
+        Change change = new Change(type, path, entry);
+        for (Listener listener : listeners) {
+            listener.onChange(change);
+        }
+    }
+
+    /**
+     * Runs a step on the pool, keeping count of the steps not finished yet.
+     * After the first failure no new steps are started.
+     */
+    private void submit(final Runnable step) {
+        if (failure.get() != null) {
+            return;
+        }
+        synchronized (lock) {
+            pending++;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        step.run();
+                    }
+                } finally {
+                    synchronized (lock) {
+                        pending--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private String get(String link) throws IOException {
+        HttpResponse response = ApiClient.getMetadata(link, accessToken);
+        if (response.getHttpStatusCode() > 299) {
+            throw new IOException("HTTP " + response.getHttpStatusCode() + " while reading " + link);
+        }
+        return response.getResponseBody();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
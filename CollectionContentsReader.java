@@ -0,0 +1,182 @@
+package com.sugarsync.sample.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * @file CollectionContentsReader.java
+ *
+ *       Reads the entries of a collectionContents link one at a time.
+ *
+ *       The contents are requested page by page with the "start" and "max"
+ *       query parameters, and every page is parsed incrementally from the
+ *       response stream while the entries are consumed. Only the entry being
+ *       read is held in memory, whatever the size of the folder. The
+ *       validators (ETag, Last-Modified) of every page are kept, so a later
+ *       conditional request can tell whether the page changed.
+ */
+class CollectionContentsReader implements Closeable {
+
+    static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final String contentsLink;
+    private final String accessToken;
+    private final int pageSize;
+
+    private long pageStart;
+    private long nextStart;
+    private boolean hasMore = true;
+    private int pageEntries;
+    private InputStream in;
+    private XMLStreamReader reader;
+    private final List<Page> pages = new ArrayList<Page>();
+
+    /**
+     * @param contentsLink
+     *            the collectionContents link (files, collections or contents
+     *            of a folder)
+     * @param accessToken
+     *            the access token
+     * @param pageSize
+     *            the maximum number of entries requested at a time
+     */
+    CollectionContentsReader(String contentsLink, String accessToken, int pageSize) {
+        this.contentsLink = contentsLink;
+        this.accessToken = accessToken;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the next entry, requesting the next page when the current one
+     * is exhausted
+     *
+     * @return the next entry or null when there are no more entries
+     * @throws IOException
+     *             if any I/O error occurs or a response cannot be parsed
+     */
+    RemoteEntry next() throws IOException {
+        try {
+            while (true) {
+                if (reader == null) {
+                    if (!hasMore) {
+                        return null;
+                    }
+                    openPage();
+                }
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = reader.getLocalName();
+                    if ("collectionContents".equals(name)) {
+                        readPageAttributes();
+                    } else if ("file".equals(name) || "collection".equals(name)) {
+                        pageEntries++;
+                        return RemoteEntry.fromFields("collection".equals(name), StaxXml.readRecord(reader));
+                    }
+                }
+                closePage();
+            }
+        } catch (XMLStreamException e) {
+            close();
+            throw new IOException("Cannot parse the contents of " + contentsLink, e);
+        }
+    }
+
+    /**
+     * Returns the pages read so far, with their validators
+     */
+    List<Page> getPages() {
+        return pages;
+    }
+
+    /**
+     * Returns the link of the page starting at an entry index
+     */
+    static String pageLink(String contentsLink, long start, int pageSize) {
+        String separator = contentsLink.indexOf('?') == -1 ? "?" : "&";
+        return contentsLink + separator + "start=" + start + "&max=" + pageSize;
+    }
+
+    /**
+     * Releases the connection of the current page
+     */
+    public void close() {
+        closePage();
+        hasMore = false;
+    }
+
+    private void openPage() throws IOException, XMLStreamException {
+        pageStart = nextStart;
+        String pageLink = pageLink(contentsLink, nextStart, pageSize);
+        HttpURLConnection connection = ApiClient.execute(pageLink, accessToken, "GET", true, null);
+        int status = connection.getResponseCode();
+        if (status > 299) {
+            ApiClient.release(connection);
+            throw new IOException("HTTP " + status + " while reading " + pageLink);
+        }
+        pages.add(new Page(pageStart, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified")));
+        in = connection.getInputStream();
+        reader = StaxXml.createReader(in);
+        // a response without paging attributes is the whole collection
+        hasMore = false;
+        pageEntries = 0;
+    }
+
+    private void readPageAttributes() {
+        hasMore = "true".equals(reader.getAttributeValue(null, "hasMore"));
+        String end = reader.getAttributeValue(null, "end");
+        if (end != null) {
+            nextStart = Long.parseLong(end) + 1;
+        }
+    }
+
+    private void closePage() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // nothing left to read
+            }
+            reader = null;
+        }
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+            in = null;
+        }
+        if (pageEntries == 0) {
+            // an empty page ends the collection even if it claims more
+            hasMore = false;
+        } else if (nextStart <= pageStart) {
+            nextStart = pageStart + pageEntries;
+        }
+    }
+
+    /**
+     * A page of the contents with the validators of its response, null when
+     * the server sent none
+     */
+    static class Page {
+        final long start;
+        final String etag;
+        final String lastModified;
+
+        Page(long start, String etag, String lastModified) {
+            this.start = start;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
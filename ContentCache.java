@@ -0,0 +1,420 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @file ContentCache.java
+ *
+ *       Keeps downloaded files in a local directory, so several downloads of
+ *       the same remote file (by the same or by several processes on the
+ *       machine) transfer it only once.
+ *
+ *       An entry is keyed by the remote ref, size and lastModified of the
+ *       file, so a changed remote file is a new entry. A file is downloaded
+ *       into the cache first, then copied to its destination with
+ *       FileChannel.transferTo (copy_file_range or sendfile on Linux, which
+ *       some file systems turn into a reflink) or, when linking is enabled,
+ *       hard linked; linked cache files are read only, since the cache and
+ *       the destination share the same data.
+ *
+ *       Single flight: a lock per entry, held both within the process and
+ *       with a file lock across processes, makes concurrent requests for the
+ *       same file wait for the first one instead of downloading it again.
+ *       The in-process lock is dropped when no request uses it, and the lock
+ *       file is deleted with its entry.
+ *
+ *       The cache is bounded: after each download the least recently used
+ *       entries are removed until the total size fits the cap. The last use
+ *       of an entry is the modification time of its lock file, which every
+ *       fetch refreshes; the cached file itself is never touched, since its
+ *       linked destinations share its timestamps.
+ */
+class ContentCache {
+
+    static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HASH_SUFFIX = ".sha256";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Map<File, ContentCache> OPEN_CACHES = new HashMap<File, ContentCache>();
+
+    private final File directory;
+    private final long maxBytes;
+    private final boolean link;
+    // in-process locks of the entries being used, guarded by itself
+    private final Map<String, EntryLock> locks = new HashMap<String, EntryLock>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    private ContentCache(File directory, long maxBytes, boolean link) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.link = link;
+    }
+
+    /**
+     * Returns the cache stored in a directory, creating the directory if
+     * needed
+     *
+     * @param directory
+     *            the cache directory
+     * @param maxBytes
+     *            the maximum total size of the cached files
+     * @param link
+     *            true to hard link the cached files to their destination
+     *            instead of copying them
+     * @return the cache, the same instance for every caller
+     * @throws IOException
+     *             if the directory cannot be created
+     */
+    static ContentCache open(File directory, long maxBytes, boolean link) throws IOException {
+        File key = directory.getAbsoluteFile();
+        synchronized (OPEN_CACHES) {
+            ContentCache cache = OPEN_CACHES.get(key);
+            if (cache == null) {
+                if (!key.isDirectory() && !key.mkdirs()) {
+                    throw new IOException("Cannot create cache directory " + key);
+                }
+                cache = new ContentCache(key, maxBytes, link);
+                OPEN_CACHES.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Writes a remote file to its destination, from the cache if present,
+     * otherwise downloading it into the cache first
+     *
+     * @param file
+     *            the remote file
+     * @param target
+     *            the destination file, replaced if it exists
+     * @param downloader
+     *            downloads the file on a miss
+     * @return the result: whether it was a hit, the bytes downloaded and the
+     *         content hash
+     * @throws IOException
+     *             if the download or the copy fails
+     */
+    Fetched fetch(RemoteEntry file, File target, ResumableDownloader downloader) throws IOException {
+        String key = keyOf(file);
+        File cached = new File(directory, key);
+        File hashFile = new File(directory, key + HASH_SUFFIX);
+
+        EntryLock lock = lockOf(key);
+        lock.lock.lock();
+        try {
+            RandomAccessFile lockFile = lockEntryFile(key);
+            try {
+                boolean hit = cached.isFile() && cached.length() == file.size;
+                long downloaded = 0;
+                String contentHash;
+                if (hit) {
+                    hits.incrementAndGet();
+                    contentHash = readHash(hashFile);
+                } else {
+                    misses.incrementAndGet();
+                    ResumableDownloader.DownloadedFile loaded = downloader.download(file, cached.getPath());
+                    downloaded = loaded.transferred;
+                    contentHash = loaded.contentHash;
+                    if (contentHash != null) {
+                        writeHash(hashFile, contentHash);
+                    }
+                    if (link) {
+                        cached.setWritable(false, false);
+                    }
+                }
+                new File(directory, key + LOCK_SUFFIX).setLastModified(System.currentTimeMillis());
+                place(cached, target);
+                return new Fetched(hit, downloaded, contentHash);
+            } finally {
+                // releases the file lock
+                lockFile.close();
+            }
+        } finally {
+            lock.lock.unlock();
+            unlockOf(key, lock);
+            evict();
+        }
+    }
+
+    /**
+     * Prints the metrics of every cache opened by the process
+     */
+    static void printOpenMetrics() {
+        synchronized (OPEN_CACHES) {
+            for (ContentCache cache : OPEN_CACHES.values()) {
+                cache.printMetrics();
+            }
+        }
+    }
+
+    /**
+     * Prints the number of hits, misses and evictions
+     */
+    void printMetrics() {
+        System.out.println("\n---CONTENT CACHE STATS---");
+        System.out.println("Files served from the cache: " + hits.get());
+        System.out.println("Files downloaded into the cache: " + misses.get());
+        System.out.println("Files evicted: " + evicted.get());
+    }
+
+    /**
+     * Returns the in-process lock of an entry, counting the caller as a user
+     * until unlockOf
+     */
+    private EntryLock lockOf(String key) {
+        synchronized (locks) {
+            EntryLock lock = locks.get(key);
+            if (lock == null) {
+                lock = new EntryLock();
+                locks.put(key, lock);
+            }
+            lock.users++;
+            return lock;
+        }
+    }
+
+    /**
+     * Drops the in-process lock of an entry when its last user is done
+     */
+    private void unlockOf(String key, EntryLock lock) {
+        synchronized (locks) {
+            if (--lock.users == 0) {
+                locks.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Opens and locks the lock file of an entry, waiting for the other
+     * processes. A lock file deleted by an eviction while waiting is marked
+     * with a byte, and the new one is opened instead.
+     *
+     * @return the open lock file, closing it releases the lock
+     */
+    private RandomAccessFile lockEntryFile(String key) throws IOException {
+        while (true) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(directory, key + LOCK_SUFFIX), "rw");
+            try {
+                lockFile.getChannel().lock();
+                if (lockFile.length() == 0) {
+                    return lockFile;
+                }
+            } catch (IOException e) {
+                lockFile.close();
+                throw e;
+            }
+            lockFile.close();
+        }
+    }
+
+    /**
+     * Links or copies the cached file to the destination through a temporary
+     * file, so the destination never holds a partial file
+     */
+    private void place(File cached, File target) throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        File tmp = new File(parent, target.getName() + ".cache-tmp");
+        tmp.delete();
+        boolean linked = false;
+        if (link) {
+            try {
+                Files.createLink(tmp.toPath(), cached.toPath());
+                linked = true;
+            } catch (IOException e) {
+                // another file system, copy instead
+            } catch (UnsupportedOperationException e) {
+                // no hard links, copy instead
+            }
+        }
+        if (!linked) {
+            copy(cached, tmp);
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel from = in.getChannel();
+                FileChannel to = out.getChannel();
+                long size = from.size();
+                long copied = 0;
+                while (copied < size) {
+                    copied += from.transferTo(copied, size - copied, to);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits the cap.
+     * Entries being downloaded or locked by another request are skipped.
+     */
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        int entries = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (isEntry(files[i])) {
+                total += files[i].length();
+                files[entries++] = files[i];
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        File[] byAge = Arrays.copyOf(files, entries);
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File file : byAge) {
+            File lockFile = new File(directory, file.getName() + LOCK_SUFFIX);
+            lastUsed.put(file, lockFile.isFile() ? lockFile.lastModified() : file.lastModified());
+        }
+        Arrays.sort(byAge, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return lastUsed.get(a).compareTo(lastUsed.get(b));
+            }
+        });
+        for (File file : byAge) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (remove(file)) {
+                total -= length;
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes an entry unless a request holds it
+     */
+    private boolean remove(File file) {
+        String key = file.getName();
+        EntryLock lock = lockOf(key);
+        try {
+            if (!lock.lock.tryLock()) {
+                return false;
+            }
+            try {
+                File lockPath = new File(directory, key + LOCK_SUFFIX);
+                RandomAccessFile lockFile = new RandomAccessFile(lockPath, "rw");
+                try {
+                    FileLock processLock = lockFile.getChannel().tryLock();
+                    if (processLock == null || lockFile.length() != 0) {
+                        return false;
+                    }
+                    new File(directory, key + HASH_SUFFIX).delete();
+                    boolean removed = file.delete();
+                    // tell the requests waiting on this lock file to open a
+                    // new one, then delete it
+                    lockFile.write(1);
+                    lockPath.delete();
+                    return removed;
+                } finally {
+                    lockFile.close();
+                }
+            } finally {
+                lock.lock.unlock();
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            unlockOf(key, lock);
+        }
+    }
+
+    /**
+     * Returns true for a complete cached file, not for the hash, lock and
+     * partial download files next to it
+     */
+    private static boolean isEntry(File file) {
+        String name = file.getName();
+        return file.isFile() && name.indexOf('.') == -1;
+    }
+
+    private static String keyOf(RemoteEntry file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest((file.ref + "\n" + file.size + "\n" + file.lastModified).getBytes(UTF8));
+            StringBuilder key = new StringBuilder();
+            for (byte b : bytes) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readHash(File hashFile) {
+        if (!hashFile.isFile()) {
+            return null;
+        }
+        try {
+            String hash = new String(Files.readAllBytes(hashFile.toPath()), UTF8).trim();
+            return hash.length() == 0 ? null : hash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeHash(File hashFile, String hash) throws IOException {
+        Files.write(hashFile.toPath(), hash.getBytes(UTF8));
+    }
+
+    /**
+     * The in-process lock of an entry with the number of requests using it
+     */
+    private static class EntryLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int users;
+    }
+
+    /**
+     * The outcome of a fetch
+     */
+    static class Fetched {
+        final boolean hit;
+        final long downloaded;
+        final String contentHash;
+
+        Fetched(boolean hit, long downloaded, String contentHash) {
+            this.hit = hit;
+            this.downloaded = downloaded;
+            this.contentHash = contentHash;
+        }
+    }
+}
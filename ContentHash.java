@@ -0,0 +1,153 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @file ContentHash.java
+ *
+ *       The content hash of a file: the SHA-256 of the SHA-256 digests of its
+ *       consecutive 4 MB blocks.
+ *
+ *       Hashing blocks instead of the whole stream lets the segments of a
+ *       download be hashed independently, in any order and across restarts,
+ *       while the data is written; an upload hashes the same blocks while it
+ *       streams the file. Both give the same hash for the same content and
+ *       the file is never read a second time.
+ */
+class ContentHash {
+
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    /**
+     * Combines the block digests of a whole file, in file order
+     *
+     * @param blockHashes
+     *            the hex block digests
+     * @return the hex content hash
+     */
+    static String combine(List<String> blockHashes) {
+        MessageDigest digest = newDigest();
+        for (String blockHash : blockHashes) {
+            digest.update(fromHex(blockHash));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes a local file by reading it. Only used to compare a local file
+     * whose hash is unknown with a remote one before uploading it.
+     *
+     * @param file
+     *            the local file
+     * @return the hex content hash
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static String hashFile(File file) throws IOException {
+        BlockHasher hasher = new BlockHasher();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(StreamCopier.BUFFER_SIZE);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return combine(hasher.finish());
+    }
+
+    /**
+     * Rounds a size up to a whole number of blocks
+     */
+    static long alignToBlocks(long size) {
+        return Math.max(BLOCK_SIZE, (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Hashes a contiguous range of a file, starting on a block boundary, as
+     * the bytes go by
+     */
+    static class BlockHasher {
+        private final MessageDigest digest = newDigest();
+        private final List<String> blockHashes = new ArrayList<String>();
+        private long blockBytes;
+
+        /**
+         * Hashes the remaining bytes of the buffer, leaving its position
+         * unchanged
+         *
+         * @param buffer
+         *            the bytes just read
+         */
+        void update(ByteBuffer buffer) {
+            ByteBuffer bytes = buffer.duplicate();
+            while (bytes.hasRemaining()) {
+                int chunk = (int) Math.min(bytes.remaining(), BLOCK_SIZE - blockBytes);
+                ByteBuffer slice = bytes.duplicate();
+                slice.limit(slice.position() + chunk);
+                digest.update(slice);
+                bytes.position(bytes.position() + chunk);
+                blockBytes += chunk;
+                if (blockBytes == BLOCK_SIZE) {
+                    blockHashes.add(toHex(digest.digest()));
+                    blockBytes = 0;
+                }
+            }
+        }
+
+        /**
+         * Returns the digests of the blocks of the range, the last one
+         * possibly shorter
+         */
+        List<String> finish() {
+            if (blockBytes > 0) {
+                blockHashes.add(toHex(digest.digest()));
+                blockBytes = 0;
+            }
+            return blockHashes;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @file DaemonServer.java
+ *
+ *       Runs tool commands submitted over a local socket, so that a job does
+ *       not pay the JVM startup, the authorization and the metadata requests
+ *       again: the token manager, the connection pool and the metadata cache
+ *       stay warm between jobs.
+ *
+ *       The server listens on the loopback interface only, but other local
+ *       users can reach that port too, and a job runs with the account and
+ *       the file access of the daemon owner. So a client must first send the
+ *       shared secret kept in the secret file, readable by its owner only
+ *       (created with a random secret on the first start), then one job line
+ *       per connection:
+ *
+ *       [-priority <p>] [-weight <w>] <command> [<arguments>]
+ *
+ *       where arguments containing spaces are double quoted. Jobs wait in a
+ *       priority queue (higher priority first, then in arrival order) and at
+ *       most a fixed number run at the same time. Running jobs share the
+ *       bandwidth cap in proportion to their weight (1 by default). Everything the job prints
+ *       is sent back on the connection, followed by a last "EXIT <status>"
+ *       line.
+ */
+class DaemonServer {
+
+    static final int DEFAULT_PORT = 7070;
+    static final int DEFAULT_CONCURRENCY = 4;
+    static final String SECRET_SUFFIX = ".daemon-secret";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String PRIORITY_PARAM = "-priority";
+    private static final String WEIGHT_PARAM = "-weight";
+
+    /**
+     * Runs one tool command
+     */
+    interface CommandRunner {
+        /**
+         * @param command
+         *            the command name
+         * @param arguments
+         *            the command arguments
+         * @return the exit status
+         * @throws Exception
+         *             if the command fails
+         */
+        int run(String command, List<String> arguments) throws Exception;
+    }
+
+    private final int port;
+    private final int concurrency;
+    private final File secretFile;
+    private final CommandRunner runner;
+    private byte[] secret;
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param port
+     *            the loopback port to listen on
+     * @param concurrency
+     *            the maximum number of jobs running at the same time
+     * @param secretFile
+     *            the file of the secret the clients must send, created if
+     *            missing
+     * @param runner
+     *            runs the commands of the jobs
+     */
+    DaemonServer(int port, int concurrency, File secretFile, CommandRunner runner) {
+        this.port = port;
+        this.concurrency = concurrency;
+        this.secretFile = secretFile;
+        this.runner = runner;
+    }
+
+    /**
+     * Accepts jobs until the process is stopped
+     *
+     * @throws IOException
+     *             if the secret file cannot be read or created, or the port
+     *             cannot be opened
+     */
+    void serve() throws IOException {
+        secret = readSecret(secretFile);
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        JobOutput.install();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "daemon-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        System.out.println("Accepting jobs on " + serverSocket.getLocalSocketAddress() + ", " + concurrency
+                + " at a time, with the secret of " + secretFile);
+
+        ExecutorService connections = Executors.newCachedThreadPool();
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                connections.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdown();
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Reads the secret and the job line of a connection, queues the job and
+     * keeps the connection open until the job is done
+     */
+    private void handle(Socket socket) {
+        try {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+                String given = in.readLine();
+                if (given == null || !MessageDigest.isEqual(secret, given.trim().getBytes(UTF8))) {
+                    out.println("Not authorized: the first line must be the secret of " + secretFile);
+                    out.println("EXIT 2");
+                    return;
+                }
+                String line = in.readLine();
+                List<String> words = line == null ? new ArrayList<String>() : split(line);
+                int priority = 0;
+                double weight = 1;
+                while (words.size() >= 2
+                        && (PRIORITY_PARAM.equals(words.get(0)) || WEIGHT_PARAM.equals(words.get(0)))) {
+                    try {
+                        if (PRIORITY_PARAM.equals(words.get(0))) {
+                            priority = Integer.parseInt(words.get(1));
+                        } else {
+                            weight = Double.parseDouble(words.get(1));
+                            if (!(weight > 0)) {
+                                throw new NumberFormatException();
+                            }
+                        }
+                    } catch (NumberFormatException e) {
+                        out.println("Invalid " + words.get(0).substring(1) + " " + words.get(1));
+                        out.println("EXIT 2");
+                        return;
+                    }
+                    words = words.subList(2, words.size());
+                }
+                if (words.isEmpty()) {
+                    out.println("No command");
+                    out.println("EXIT 2");
+                    return;
+                }
+
+                Job job = new Job(priority, weight, sequence.incrementAndGet(), words.get(0),
+                        new ArrayList<String>(words.subList(1, words.size())), out);
+                queue.put(job);
+                job.done.await();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the secret file, or creates it with a random secret, readable and
+     * writable by its owner only. A secret file other users can read is
+     * refused.
+     */
+    private static byte[] readSecret(File file) throws IOException {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        if (!file.exists()) {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : random) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            if (posix) {
+                Files.createFile(file.toPath(),
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                file.createNewFile();
+                file.setReadable(false, false);
+                file.setReadable(true, true);
+                file.setWritable(false, false);
+                file.setWritable(true, true);
+            }
+            Files.write(file.toPath(), (hex + "\n").getBytes(UTF8));
+        } else if (posix) {
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(file.toPath())) {
+                if (permission != PosixFilePermission.OWNER_READ && permission != PosixFilePermission.OWNER_WRITE) {
+                    throw new IOException("The daemon secret file " + file
+                            + " must be readable and writable by its owner only");
+                }
+            }
+        }
+        String value = new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+        if (value.length() == 0) {
+            throw new IOException("The daemon secret file " + file + " is empty");
+        }
+        return value.getBytes(UTF8);
+    }
+
+    /**
+     * Runs queued jobs, highest priority first
+     */
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Telemetry.recordQueueWait("daemon", System.nanoTime() - job.queuedAt);
+            int status;
+            JobOutput.set(job.out);
+            BandwidthGovernor.setFlow(new BandwidthGovernor.Flow("job " + job.sequence, job.weight));
+            try {
+                status = runner.run(job.command, job.arguments);
+            } catch (ToolExitException e) {
+                status = e.status;
+            } catch (Exception e) {
+                e.printStackTrace(job.out);
+                status = 1;
+            } finally {
+                JobOutput.set(null);
+                BandwidthGovernor.setFlow(null);
+            }
+            job.out.println("EXIT " + status);
+            job.done.countDown();
+        }
+    }
+
+    /**
+     * Splits a job line on spaces, keeping double quoted words together
+     */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        boolean inWord = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inWord = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * A queued command, ordered by priority then arrival
+     */
+    private static class Job implements Comparable<Job> {
+        final int priority;
+        final double weight;
+        final long sequence;
+        final String command;
+        final List<String> arguments;
+        final PrintStream out;
+        final long queuedAt = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Job(int priority, double weight, long sequence, String command, List<String> arguments, PrintStream out) {
+            this.priority = priority;
+            this.weight = weight;
+            this.sequence = sequence;
+            this.command = command;
+            this.arguments = arguments;
+            this.out = out;
+        }
+
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Sends what a job prints to its client. System.out is replaced by a
+     * stream that writes to the stream of the current job, inherited by the
+     * threads the job starts, or to the console outside of jobs. Also used by
+     * the BatchRunner.
+     */
+    static class JobOutput extends OutputStream {
+        private static final InheritableThreadLocal<PrintStream> current = new InheritableThreadLocal<PrintStream>();
+        private static boolean installed;
+
+        private final PrintStream console;
+
+        private JobOutput(PrintStream console) {
+            this.console = console;
+        }
+
+        static synchronized void install() {
+            if (!installed) {
+                System.setOut(new PrintStream(new JobOutput(System.out), true));
+                installed = true;
+            }
+        }
+
+        static void set(PrintStream out) {
+            current.set(out);
+        }
+
+        private PrintStream target() {
+            PrintStream out = current.get();
+            return out == null ? console : out;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+}
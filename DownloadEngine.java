@@ -0,0 +1,281 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file DownloadEngine.java
+ *
+ *       Downloads a set of remote files concurrently.
+ *
+ *       - at most "parallelism" files are transferred at the same time
+ *
+ *       - the sum of the sizes of the files being transferred never exceeds
+ *       "maxInFlightBytes" (a file bigger than the limit is transferred alone)
+ *
+ *       - each file is fetched with a ResumableDownloader, so a failed run
+ *       can be restarted without transferring the completed segments again,
+ *       and a large file is split across several connections
+ *
+ *       - files queued with their remote entry go through the content cache
+ *       when one is configured, so a file already in the cache is copied
+ *       locally instead of downloaded
+ *
+ *       - with a PostProcessor, every downloaded file is handed to it as soon
+ *       as it is complete; a download thread waits while the processing
+ *       queue is full
+ *
+ *       - per file and total throughput is reported when all the transfers
+ *       are done
+ */
+class DownloadEngine {
+
+    private static final double ONE_MB = 1024.0 * 1024;
+
+    private final ResumableDownloader downloader;
+    private final ContentCache cache;
+    private final int parallelism;
+    private final ByteBudget budget;
+    private PostProcessor postProcessor;
+    private final List<DownloadTask> tasks = new ArrayList<DownloadTask>();
+    private final List<DownloadResult> results = Collections.synchronizedList(new ArrayList<DownloadResult>());
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param options
+     *            the number of concurrent downloads, the maximum number of
+     *            bytes in flight, the segmenting of large files and the
+     *            content cache
+     * @throws IOException
+     *             if the content cache directory cannot be created
+     */
+    DownloadEngine(String accessToken, TransferOptions options) throws IOException {
+        this.downloader = new ResumableDownloader(accessToken, options.segmentSize, options.segments);
+        this.cache = options.contentCacheDir == null ? null : ContentCache.open(new File(options.contentCacheDir),
+                options.contentCacheBytes, options.contentCacheLinks);
+        this.parallelism = Math.max(1, options.parallelism);
+        this.budget = new ByteBudget(options.maxInFlightBytes);
+    }
+
+    /**
+     * Queues a file for download
+     *
+     * @param link
+     *            the file data link extracted from the folder contents
+     * @param fileName
+     *            the local file name
+     * @param size
+     *            the remote file size in bytes
+     */
+    void add(String link, String fileName, long size) {
+        tasks.add(new DownloadTask(link, fileName, size, null));
+    }
+
+    /**
+     * Queues a remote file for download through the content cache
+     *
+     * @param file
+     *            the remote file
+     * @param fileName
+     *            the local file name
+     */
+    void add(RemoteEntry file, String fileName) {
+        tasks.add(new DownloadTask(file.fileData, fileName, file.size, file));
+    }
+
+    /**
+     * Hands the downloaded files to a post processor as they complete
+     *
+     * @param postProcessor
+     *            the started post processor, null for none
+     */
+    void setPostProcessor(PostProcessor postProcessor) {
+        this.postProcessor = postProcessor;
+    }
+
+    /**
+     * Runs all the queued downloads and waits for them to finish
+     *
+     * @return the download results in completion order
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    List<DownloadResult> run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (final DownloadTask task : tasks) {
+                final long queued = System.nanoTime();
+                final long reserved = budget.acquire(task.size);
+                executor.execute(new Runnable() {
+                    public void run() {
+                        Telemetry.recordQueueWait("download", System.nanoTime() - queued);
+                        DownloadResult result;
+                        try {
+                            result = download(task);
+                            results.add(result);
+                        } finally {
+                            budget.release(reserved);
+                        }
+                        if (postProcessor != null && result.isSuccessful()) {
+                            try {
+                                // blocks this thread, and so the next download,
+                                // while the processing queue is full
+                                postProcessor.submit(result);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        return new ArrayList<DownloadResult>(results);
+    }
+
+    /**
+     * Downloads a single file
+     *
+     * @param task
+     *            the file to download
+     * @return the download result
+     */
+    private DownloadResult download(DownloadTask task) {
+        System.out.println("Begin Download of " + task.fileName);
+        long start = System.nanoTime();
+        try {
+            if (cache != null && task.file != null) {
+                ContentCache.Fetched fetched = cache.fetch(task.file, new File(task.fileName), downloader);
+                System.out.println("Done " + task.fileName + (fetched.hit ? " (from cache)." : "."));
+                long nanos = System.nanoTime() - start;
+                if (!fetched.hit) {
+                    Telemetry.recordTransfer("download", fetched.downloaded, nanos);
+                }
+                return new DownloadResult(task.fileName, fetched.downloaded, nanos, null, fetched.contentHash);
+            }
+            ResumableDownloader.DownloadedFile file = task.file != null ? downloader.download(task.file, task.fileName)
+                    : downloader.download(task.link, task.fileName, task.size,
+                            ResumableDownloader.versionOf(task.link, task.size, null));
+            System.out.println("Done " + task.fileName + ".");
+            long nanos = System.nanoTime() - start;
+            Telemetry.recordTransfer("download", file.transferred, nanos);
+            return new DownloadResult(task.fileName, file.transferred, nanos, null, file.contentHash);
+        } catch (Exception e) {
+            System.out.println("Failed " + task.fileName + ": " + e.getMessage());
+            return new DownloadResult(task.fileName, 0, System.nanoTime() - start, e.toString(), null);
+        }
+    }
+
+    /**
+     * Prints the per file and total throughput of the downloads
+     *
+     * @param results
+     *            the download results
+     * @param wallClockNanos
+     *            the time spent by the whole download run
+     */
+    static void printReport(List<DownloadResult> results, long wallClockNanos) {
+        DecimalFormat threeDForm = new DecimalFormat("#.###");
+        long totalBytes = 0;
+        System.out.println("\n---DOWNLOAD REPORT---");
+        for (DownloadResult result : results) {
+            totalBytes += result.bytes;
+            String status = result.isSuccessful() ? "" : " FAILED: " + result.error;
+            System.out.println(result.fileName + ": " + threeDForm.format(result.bytes / ONE_MB) + " MB in "
+                    + threeDForm.format(result.nanos / 1e9) + " s (" + threeDForm.format(mbPerSecond(result.bytes, result.nanos))
+                    + " MB/s)" + status);
+        }
+        System.out.println("Total: " + threeDForm.format(totalBytes / ONE_MB) + " MB in "
+                + threeDForm.format(wallClockNanos / 1e9) + " s (" + threeDForm.format(mbPerSecond(totalBytes, wallClockNanos))
+                + " MB/s)");
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : (bytes / ONE_MB) / (nanos / 1e9);
+    }
+
+    /**
+     * A file waiting to be downloaded
+     */
+    private static class DownloadTask {
+        private final String link;
+        private final String fileName;
+        private final long size;
+        // the remote file, null to bypass the content cache
+        private final RemoteEntry file;
+
+        private DownloadTask(String link, String fileName, long size, RemoteEntry file) {
+            this.link = link;
+            this.fileName = fileName;
+            this.size = size;
+            this.file = file;
+        }
+    }
+
+    /**
+     * The outcome of a single file download
+     */
+    static class DownloadResult {
+        final String fileName;
+        final long bytes;
+        final long nanos;
+        final String error;
+        // content hash of the downloaded file, null if unknown
+        final String contentHash;
+
+        DownloadResult(String fileName, long bytes, long nanos, String error, String contentHash) {
+            this.fileName = fileName;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.error = error;
+            this.contentHash = contentHash;
+        }
+
+        boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Limits the number of bytes being transferred at the same time
+     */
+    private static class ByteBudget {
+        private final long limit;
+        private long available;
+
+        private ByteBudget(long limit) {
+            this.limit = limit;
+            this.available = limit;
+        }
+
+        /**
+         * Blocks until the requested amount of bytes is available. A request
+         * bigger than the limit is reduced to the limit so it can run alone.
+         *
+         * @return the amount of bytes actually reserved
+         */
+        private synchronized long acquire(long bytes) throws InterruptedException {
+            long reserved = Math.min(Math.max(bytes, 0), limit);
+            while (available < reserved) {
+                wait();
+            }
+            available -= reserved;
+            return reserved;
+        }
+
+        private synchronized void release(long bytes) {
+            available += bytes;
+            notifyAll();
+        }
+    }
+}
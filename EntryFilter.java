@@ -0,0 +1,274 @@
+package com.sugarsync.sample.tool;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @file EntryFilter.java
+ *
+ *       Selects the files of a folder listing. A filter is a list of terms
+ *       separated by spaces, all of which must match:
+ *
+ *       name:<glob>[,<glob>...] - the displayName matches one of the globs
+ *       (* and ? wildcards, case insensitive)
+ *
+ *       type:<mediaType>[,<mediaType>...] - the mediaType is one of the types;
+ *       "audio/*" matches any audio type
+ *
+ *       size:[<min>]..[<max>] - the size is within the range, in bytes or
+ *       with a k, m or g suffix
+ *
+ *       modified:[<from>]..[<to>] - lastModified is within the window; a
+ *       bound is a date (2024-01-31), a timestamp (2024-01-31T12:00:00Z,
+ *       local time without an offset) or an age (30m, 12h, 7d)
+ *
+ *       e.g. "name:*.mov,*.wav size:10m.. modified:1d.." selects the movies
+ *       and sounds of at least 10 MB modified during the last day. The filter
+ *       is compiled once and applied to each entry as the listing streams
+ *       in, so the files it rejects are never kept.
+ */
+class EntryFilter {
+
+    static final String DEFAULT_FILTER = "type:video/quicktime";
+    static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    // an age bound: digits followed by m (minutes), h (hours) or d (days)
+    private static final Pattern AGE = Pattern.compile("(\\d+)([mhd])", Pattern.CASE_INSENSITIVE);
+
+    private final List<Pattern> names = new ArrayList<Pattern>();
+    private final List<String> types = new ArrayList<String>();
+    private long minSize = 0;
+    private long maxSize = Long.MAX_VALUE;
+    private long modifiedFrom = Long.MIN_VALUE;
+    private long modifiedTo = Long.MAX_VALUE;
+
+    private EntryFilter() {
+    }
+
+    /**
+     * Compiles a filter
+     *
+     * @param query
+     *            the filter terms
+     * @return the filter
+     * @throws IllegalArgumentException
+     *             if a term is not valid
+     */
+    static EntryFilter parse(String query) {
+        EntryFilter filter = new EntryFilter();
+        long now = System.currentTimeMillis();
+        for (String term : query.trim().split("\\s+")) {
+            if (term.length() == 0) {
+                continue;
+            }
+            int colon = term.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid filter term " + term);
+            }
+            String key = term.substring(0, colon);
+            String value = term.substring(colon + 1);
+            if (key.equals("name")) {
+                for (String glob : value.split(",")) {
+                    filter.names.add(globPattern(glob));
+                }
+            } else if (key.equals("type")) {
+                for (String type : value.split(",")) {
+                    filter.types.add(type.toLowerCase(Locale.ROOT));
+                }
+            } else if (key.equals("size")) {
+                String[] range = range(term, value);
+                if (range[0].length() > 0) {
+                    filter.minSize = parseSize(range[0]);
+                }
+                if (range[1].length() > 0) {
+                    filter.maxSize = parseSize(range[1]);
+                }
+            } else if (key.equals("modified")) {
+                String[] range = range(term, value);
+                if (range[0].length() > 0) {
+                    filter.modifiedFrom = parseTime(range[0], now);
+                }
+                if (range[1].length() > 0) {
+                    filter.modifiedTo = parseTime(range[1], now);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown filter term " + term);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Returns true if the entry is a file selected by the filter
+     *
+     * @param entry
+     *            a listed entry
+     */
+    boolean matches(RemoteEntry entry) {
+        if (entry.collection) {
+            return false;
+        }
+        long modified = UNKNOWN_TIME;
+        if (entry.lastModified != null && (modifiedFrom != Long.MIN_VALUE || modifiedTo != Long.MAX_VALUE)) {
+            modified = parseLastModified(entry.lastModified);
+        }
+        return matches(entry.displayName, entry.size, entry.mediaType, modified);
+    }
+
+    /**
+     * Returns true if a file with these fields is selected by the filter
+     *
+     * @param displayName
+     *            the file name
+     * @param size
+     *            the size in bytes
+     * @param mediaType
+     *            the media type, or null
+     * @param modified
+     *            the last modification in milliseconds since the epoch, or
+     *            UNKNOWN_TIME
+     */
+    boolean matches(String displayName, long size, String mediaType, long modified) {
+        if (size < minSize || size > maxSize) {
+            return false;
+        }
+        if (!names.isEmpty() && !matchesName(displayName)) {
+            return false;
+        }
+        if (!types.isEmpty() && !matchesType(mediaType)) {
+            return false;
+        }
+        if (modifiedFrom != Long.MIN_VALUE || modifiedTo != Long.MAX_VALUE) {
+            if (modified == UNKNOWN_TIME || modified < modifiedFrom || modified > modifiedTo) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a lastModified timestamp of the API
+     *
+     * @return the milliseconds since the epoch, or UNKNOWN_TIME if it is not
+     *         valid
+     */
+    static long parseLastModified(String lastModified) {
+        try {
+            return OffsetDateTime.parse(lastModified).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return UNKNOWN_TIME;
+        }
+    }
+
+    private boolean matchesName(String displayName) {
+        if (displayName == null) {
+            return false;
+        }
+        for (Pattern name : names) {
+            if (name.matcher(displayName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesType(String mediaType) {
+        if (mediaType == null) {
+            return false;
+        }
+        String type = mediaType.toLowerCase(Locale.ROOT);
+        for (String wanted : types) {
+            if (wanted.endsWith("/*") ? type.startsWith(wanted.substring(0, wanted.length() - 1))
+                    : type.equals(wanted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] range(String term, String value) {
+        int dots = value.indexOf("..");
+        if (dots < 0) {
+            throw new IllegalArgumentException("Invalid filter term " + term + ", expected <from>..<to>");
+        }
+        return new String[] { value.substring(0, dots), value.substring(dots + 2) };
+    }
+
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+    }
+
+    private static long parseSize(String size) {
+        long unit = 1;
+        char suffix = Character.toLowerCase(size.charAt(size.length() - 1));
+        if (suffix == 'k') {
+            unit = 1024L;
+        } else if (suffix == 'm') {
+            unit = 1024L * 1024;
+        } else if (suffix == 'g') {
+            unit = 1024L * 1024 * 1024;
+        }
+        String number = unit == 1 ? size : size.substring(0, size.length() - 1);
+        try {
+            return Long.parseLong(number) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+    }
+
+    private static long parseTime(String time, long now) {
+        Matcher age = AGE.matcher(time);
+        if (age.matches()) {
+            long amount;
+            try {
+                amount = Long.parseLong(age.group(1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid age " + time);
+            }
+            char unit = Character.toLowerCase(age.group(2).charAt(0));
+            if (unit == 'm') {
+                return now - amount * 60 * 1000;
+            } else if (unit == 'h') {
+                return now - amount * 60 * 60 * 1000;
+            }
+            return now - amount * 24 * 60 * 60 * 1000;
+        }
+        try {
+            if (time.indexOf('T') < 0) {
+                return LocalDate.parse(time).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+            try {
+                return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date " + time);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file FolderCrawler.java
+ *
+ *       Walks a remote folder tree with a bounded pool of concurrent requests.
+ *
+ *       For every folder the representation is fetched first, then its files
+ *       and its sub folders are fetched at the same time. Each sub folder is
+ *       queued as soon as the response of its parent arrives, so sibling and
+ *       child folders are fetched concurrently, and the entries are handed to
+ *       the listener as they are parsed from the paged contents instead of
+ *       after the whole walk.
+ */
+class FolderCrawler {
+
+    static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Receives the entries found by the crawler. The methods are called from
+     * the crawler threads, so implementations must be thread safe.
+     */
+    interface Listener {
+        /**
+         * @param path
+         *            the path of the file relative to the crawled folder
+         * @param file
+         *            the remote file
+         */
+        void onFile(String path, RemoteEntry file);
+
+        /**
+         * @param path
+         *            the path of the folder relative to the crawled folder
+         * @param folder
+         *            the remote folder
+         */
+        void onFolder(String path, RemoteEntry folder);
+    }
+
+    private final String accessToken;
+    private final int parallelism;
+    private final int pageSize;
+
+    private ExecutorService executor;
+    private final Object lock = new Object();
+    private int pending;
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param parallelism
+     *            the maximum number of concurrent requests
+     * @param pageSize
+     *            the maximum number of entries requested at a time from a
+     *            collectionContents link
+     */
+    FolderCrawler(String accessToken, int parallelism, int pageSize) {
+        this.accessToken = accessToken;
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Walks the folder tree and waits for the walk to finish
+     *
+     * @param folderLink
+     *            the link of the root folder representation
+     * @param listener
+     *            receives the files and folders below the root folder
+     * @throws IOException
+     *             if any request fails
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    void crawl(String folderLink, Listener listener) throws IOException, InterruptedException {
+        executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            submitFolder(folderLink, "", listener);
+            synchronized (lock) {
+                while (pending > 0) {
+                    lock.wait();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    private void submitFolder(final String folderLink, final String prefix, final Listener listener) {
+        submit(new Step() {
+            public void run() throws Exception {
+                FolderRecord folder = FolderRecord.parse(get(folderLink));
+                submitFiles(folder.files, prefix, listener);
+                submitCollections(folder.collections, prefix, listener);
+            }
+        });
+    }
+
+    private void submitFiles(final String filesLink, final String prefix, final Listener listener) {
+        submit(new Step() {
+            public void run() throws Exception {
+                CollectionContentsReader files = new CollectionContentsReader(filesLink, accessToken, pageSize);
+                try {
+                    RemoteEntry file;
+                    while ((file = files.next()) != null) {
+                        listener.onFile(prefix + file.displayName, file);
+                    }
+                } finally {
+                    files.close();
+                }
+            }
+        });
+    }
+
+    private void submitCollections(final String collectionsLink, final String prefix, final Listener listener) {
+        submit(new Step() {
+            public void run() throws Exception {
+                CollectionContentsReader collections = new CollectionContentsReader(collectionsLink, accessToken,
+                        pageSize);
+                try {
+                    RemoteEntry collection;
+                    while ((collection = collections.next()) != null) {
+                        String path = prefix + collection.displayName;
+                        listener.onFolder(path, collection);
+                        submitFolder(collection.ref, path + "/", listener);
+                    }
+                } finally {
+                    collections.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a step on the pool, keeping count of the steps not finished yet.
+     * After the first failure no new steps are started.
+     */
+    private void submit(final Step step) {
+        if (failure.get() != null) {
+            return;
+        }
+        synchronized (lock) {
+            pending++;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        step.run();
+                    }
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    synchronized (lock) {
+                        pending--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private String get(String link) throws IOException {
+        HttpResponse response = ApiClient.getMetadata(link, accessToken);
+        if (response.getHttpStatusCode() > 299) {
+            throw new IOException("HTTP " + response.getHttpStatusCode() + " while reading " + link);
+        }
+        return response.getResponseBody();
+    }
+
+    /**
+     * A single request of the walk
+     */
+    private interface Step {
+        void run() throws Exception;
+    }
+}
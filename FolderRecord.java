@@ -0,0 +1,37 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * @file FolderRecord.java
+ *
+ *       The fields of a folder representation used by the tool.
+ */
+class FolderRecord {
+
+    final String displayName;
+    final String collections;
+    final String files;
+    final String contents;
+
+    private FolderRecord(Map<String, String> fields) {
+        this.displayName = fields.get("displayName");
+        this.collections = fields.get("collections");
+        this.files = fields.get("files");
+        this.contents = fields.get("contents");
+    }
+
+    /**
+     * Reads the folder representation in a single pass
+     *
+     * @param xml
+     *            the xml server response
+     * @return the folder record
+     * @throws IOException
+     *             if the response is not well formed xml
+     */
+    static FolderRecord parse(String xml) throws IOException {
+        return new FolderRecord(StaxXml.readDocument(xml));
+    }
+}
@@ -0,0 +1,187 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @file HashIndex.java
+ *
+ *       Remembers the content hash of the local and remote files the tool
+ *       transferred, so that later runs can compare contents without reading
+ *       or downloading the files again.
+ *
+ *       A local hash is valid while the file keeps the size and modification
+ *       time it had when it was hashed; a remote hash while the file keeps
+ *       its ref, size and lastModified. The index is a tab separated text
+ *       file, shared by all the commands of the process.
+ */
+class HashIndex {
+
+    static final String DEFAULT_INDEX_NAME = ".sugarsync-hashes";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Map<File, HashIndex> OPEN_INDEXES = new HashMap<File, HashIndex>();
+
+    private final File indexFile;
+    private final Map<String, Entry> local = new HashMap<String, Entry>();
+    private final Map<String, Entry> remote = new HashMap<String, Entry>();
+
+    private HashIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the index stored in a file, reading it on first use
+     *
+     * @param indexFile
+     *            the index file
+     * @return the index, the same instance for every caller
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    static HashIndex open(File indexFile) throws IOException {
+        File key = indexFile.getAbsoluteFile();
+        synchronized (OPEN_INDEXES) {
+            HashIndex index = OPEN_INDEXES.get(key);
+            if (index == null) {
+                index = new HashIndex(key);
+                index.read();
+                OPEN_INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the content hash of a local file if it did not change since it
+     * was hashed
+     *
+     * @param file
+     *            the local file
+     * @return the hex content hash, or null if unknown
+     */
+    synchronized String localHash(File file) {
+        Entry entry = local.get(file.getAbsolutePath());
+        if (entry == null || entry.size != file.length()
+                || !entry.version.equals(String.valueOf(file.lastModified()))) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    /**
+     * Returns the content hash of a remote file if it did not change since it
+     * was hashed
+     *
+     * @param file
+     *            the remote file
+     * @return the hex content hash, or null if unknown
+     */
+    synchronized String remoteHash(RemoteEntry file) {
+        Entry entry = remote.get(file.ref);
+        if (entry == null || entry.size != file.size || !entry.version.equals(String.valueOf(file.lastModified))) {
+            return null;
+        }
+        return entry.hash;
+    }
+
+    /**
+     * Returns true if both files are known to have the same content
+     */
+    boolean sameContent(File localFile, RemoteEntry remoteFile) {
+        String hash = localHash(localFile);
+        return hash != null && hash.equals(remoteHash(remoteFile));
+    }
+
+    synchronized void putLocal(File file, String hash) {
+        local.put(file.getAbsolutePath(), new Entry(file.length(), String.valueOf(file.lastModified()), hash));
+    }
+
+    synchronized void putRemote(RemoteEntry file, String hash) {
+        remote.put(file.ref, new Entry(file.size, String.valueOf(file.lastModified), hash));
+    }
+
+    private void read() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(Long.parseLong(fields[2]), fields[3], fields[4]);
+                    ("L".equals(fields[0]) ? local : remote).put(fields[1], entry);
+                } catch (NumberFormatException e) {
+                    // skip a damaged line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it into place
+     *
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    synchronized void save() throws IOException {
+        File tmp = Files.createTempFile(indexFile.getAbsoluteFile().getParentFile().toPath(),
+                indexFile.getName() + ".", ".tmp").toFile();
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+            try {
+                write(writer, "L", local);
+                write(writer, "R", remote);
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // left only if the write or the move failed
+            tmp.delete();
+        }
+    }
+
+    private static void write(Writer writer, String kind, Map<String, Entry> entries) throws IOException {
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            writer.write(kind + "\t" + mapEntry.getKey() + "\t" + entry.size + "\t" + entry.version + "\t"
+                    + entry.hash + "\n");
+        }
+    }
+
+    /**
+     * The hash of a file and the version it was computed for
+     */
+    private static class Entry {
+        private final long size;
+        private final String version;
+        private final String hash;
+
+        private Entry(long size, String version, String hash) {
+            this.size = size;
+            this.version = version;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.sugarsync.sample.tool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * @file HeapMonitor.java
+ *
+ *       Tracks the peak heap usage of the JVM between a reset and a read, used
+ *       to confirm that large transfers keep a flat heap.
+ */
+class HeapMonitor {
+
+    private HeapMonitor() {
+    }
+
+    /**
+     * Resets the peak usage of all the heap memory pools
+     */
+    static void reset() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the peak usage of all the heap memory pools since
+     * the last reset. The pools peak at different times, so this is an upper
+     * bound of the real peak.
+     *
+     * @return the peak heap usage in bytes
+     */
+    static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
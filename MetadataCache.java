@@ -0,0 +1,239 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file MetadataCache.java
+ *
+ *       Caches the xml representations of the user, the shares and the
+ *       folders, keyed by their link.
+ *
+ *       A response younger than the time to live is returned without any
+ *       request. An older one is revalidated with a conditional GET
+ *       (If-None-Match / If-Modified-Since, when the server sent an ETag or a
+ *       Last-Modified header), which costs a round trip but no body when the
+ *       representation did not change. The least recently used entries are
+ *       evicted above the maximum number of entries.
+ *
+ *       The cache can be saved to a file between runs; the file is only read
+ *       back for the same user. File data and paged listings are never
+ *       cached.
+ */
+class MetadataCache {
+
+    static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final int FILE_VERSION = 1;
+
+    private final String username;
+    private final long ttlMillis;
+    private final Map<String, CachedResponse> entries;
+
+    private long hits;
+    private long revalidated;
+    private long misses;
+
+    /**
+     * @param username
+     *            the user the cached representations belong to
+     * @param ttlMillis
+     *            how long a response is used without revalidation
+     * @param maxEntries
+     *            the maximum number of cached responses
+     */
+    MetadataCache(String username, long ttlMillis, final int maxEntries) {
+        this.username = username;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the representation at the link, from the cache when it is
+     * fresh or still valid
+     *
+     * @param link
+     *            the API resource link
+     * @param accessToken
+     *            the access token
+     * @return the response; error responses are returned but not cached
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    HttpResponse get(String link, String accessToken) throws IOException {
+        CachedResponse cached;
+        synchronized (this) {
+            cached = entries.get(link);
+            if (cached != null && System.currentTimeMillis() - cached.fetchedAt < ttlMillis) {
+                hits++;
+                return cached.toResponse();
+            }
+        }
+
+        List<Header> conditions = new ArrayList<Header>();
+        if (cached != null && cached.etag != null) {
+            conditions.add(new BasicHeader("If-None-Match", cached.etag));
+        }
+        if (cached != null && cached.lastModified != null) {
+            conditions.add(new BasicHeader("If-Modified-Since", cached.lastModified));
+        }
+        HttpResponse response = ApiClient.get(link, accessToken, conditions.toArray(new Header[conditions.size()]));
+
+        synchronized (this) {
+            if (cached != null && response.getHttpStatusCode() == 304) {
+                revalidated++;
+                cached.fetchedAt = System.currentTimeMillis();
+                entries.put(link, cached);
+                return cached.toResponse();
+            }
+            misses++;
+            if (response.getHttpStatusCode() > 299) {
+                entries.remove(link);
+            } else {
+                entries.put(link, new CachedResponse(response.getResponseBody(), headerValue(response, "ETag"),
+                        headerValue(response, "Last-Modified"), System.currentTimeMillis()));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Prints the number of responses served from the cache
+     */
+    synchronized void printMetrics() {
+        System.out.println("\n---METADATA CACHE STATS---");
+        System.out.println("Served from cache: " + hits);
+        System.out.println("Revalidated: " + revalidated);
+        System.out.println("Fetched: " + misses);
+    }
+
+    /**
+     * Reads the entries saved by a previous run of the same user. A missing
+     * or unreadable file leaves the cache empty.
+     *
+     * @param file
+     *            the cache file
+     */
+    synchronized void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_VERSION || !username.equals(in.readUTF())) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String link = in.readUTF();
+                    byte[] body = new byte[in.readInt()];
+                    in.readFully(body);
+                    String etag = readOptional(in);
+                    String lastModified = readOptional(in);
+                    long fetchedAt = in.readLong();
+                    entries.put(link, new CachedResponse(new String(body, "UTF-8"), etag, lastModified, fetchedAt));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a damaged cache is ignored and rewritten
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes the entries to the cache file, least recently used first
+     *
+     * @param file
+     *            the cache file
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    synchronized void save(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(username);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, CachedResponse> mapEntry : entries.entrySet()) {
+                CachedResponse entry = mapEntry.getValue();
+                byte[] body = entry.body.getBytes("UTF-8");
+                out.writeUTF(mapEntry.getKey());
+                out.writeInt(body.length);
+                out.write(body);
+                writeOptional(out, entry.etag);
+                writeOptional(out, entry.lastModified);
+                out.writeLong(entry.fetchedAt);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * A cached response body with its validators
+     */
+    private static class CachedResponse {
+        final String body;
+        final String etag;
+        final String lastModified;
+        long fetchedAt;
+
+        CachedResponse(String body, String etag, String lastModified, long fetchedAt) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+        }
+
+        HttpResponse toResponse() {
+            return new HttpResponse(200, body, new Header[0]);
+        }
+    }
+}
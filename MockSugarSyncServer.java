@@ -0,0 +1,430 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @file MockSugarSyncServer.java
+ *
+ *       A local HTTP server answering the SugarSync API calls of the tool
+ *       with generated data, so the transfer and parsing code can be
+ *       measured without an account or a network.
+ *
+ *       It serves a user, one received share named "CapCityCreative" and a
+ *       folder tree of "fanout" sub folders per folder, "depth" levels deep,
+ *       each folder holding "filesPerFolder" files of "fileSize" bytes. The
+ *       links of the responses point back to the server:
+ *
+ *       GET /user, GET /user/receivedShares, GET /folder/<id>
+ *
+ *       GET /folder/<id>/contents[?type=file|folder][&start=&max=] - paged
+ *       collectionContents, with an ETag; 304 for a matching If-None-Match
+ *
+ *       GET /file/<id>/data - the file data, honouring a single byte Range
+ *
+ *       POST /folder/<id> - creates a file, answers its link in Location
+ *
+ *       PUT /file/<id>/data - reads and discards the uploaded data
+ *
+ *       Every response is delayed by "latencyMillis" and file data is sent
+ *       and received at most at "bytesPerSecond" per connection, to mimic a
+ *       remote server. The Authorization header is not checked.
+ *
+ *       For the checks of resumed downloads, a file data response can be cut
+ *       after a number of bytes, and the content of every file can be
+ *       replaced, at the same size and with a new lastModified.
+ */
+class MockSugarSyncServer {
+
+    static final String SHARE_NAME = "CapCityCreative";
+    static final String ROOT_ID = "root";
+
+    private static final String LAST_MODIFIED = "2024-01-31T12:00:00.000-08:00";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int fanout;
+    private final int depth;
+    private final int filesPerFolder;
+    private final long fileSize;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+
+    private final AtomicLong createdFiles = new AtomicLong();
+    // the file data repeats this block, so any range can be served
+    private volatile byte[] data = dataOfVersion(0);
+    private volatile int version;
+    // data responses let through before the cut one, and the bytes sent
+    // before cutting it, -1 for none
+    private int cutSkipped;
+    private long cutAfter = -1;
+    private HttpServer server;
+    private ExecutorService executor;
+    private String base;
+
+    /**
+     * @param fanout
+     *            the number of sub folders of each folder
+     * @param depth
+     *            the number of folder levels below the shared folder
+     * @param filesPerFolder
+     *            the number of files of each folder
+     * @param fileSize
+     *            the size of each file in bytes
+     * @param latencyMillis
+     *            the delay added to every response
+     * @param bytesPerSecond
+     *            the data rate of a single connection, 0 for no limit
+     */
+    MockSugarSyncServer(int fanout, int depth, int filesPerFolder, long fileSize, long latencyMillis,
+            long bytesPerSecond) {
+        this.fanout = fanout;
+        this.depth = depth;
+        this.filesPerFolder = filesPerFolder;
+        this.fileSize = fileSize;
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Starts the server on a free loopback port
+     *
+     * @throws IOException
+     *             if the server cannot be started
+     */
+    void start() throws IOException {
+        // without it small responses wait for the delayed ACK of their headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                } catch (RuntimeException e) {
+                    send(exchange, 500, "text/plain", e.toString());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        base = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String userLink() {
+        return base + "/user";
+    }
+
+    String folderLink(String id) {
+        return base + "/folder/" + id;
+    }
+
+    String fileDataLink(String fileId) {
+        return base + "/file/" + fileId + "/data";
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Replaces the content of every file, keeping its size. The files are
+     * listed with a new lastModified.
+     */
+    void changeFiles() {
+        version++;
+        data = dataOfVersion(version);
+    }
+
+    /**
+     * Returns the byte of a file at a position, as currently served
+     */
+    byte fileByte(long position) {
+        return data[(int) (position % CHUNK_SIZE)];
+    }
+
+    /**
+     * Cuts the connection of a file data response once some of its bytes are
+     * sent
+     *
+     * @param skipped
+     *            the number of data responses sent whole before
+     * @param bytes
+     *            the number of bytes sent before the connection is cut
+     */
+    synchronized void cutTransfer(int skipped, long bytes) {
+        cutSkipped = skipped;
+        cutAfter = bytes;
+    }
+
+    private synchronized long takeCut(long length) {
+        if (cutAfter < 0 || length <= cutAfter) {
+            return -1;
+        }
+        if (cutSkipped > 0) {
+            cutSkipped--;
+            return -1;
+        }
+        long cut = cutAfter;
+        cutAfter = -1;
+        return cut;
+    }
+
+    private static byte[] dataOfVersion(int version) {
+        byte[] bytes = new byte[CHUNK_SIZE];
+        new Random(42 + version).nextBytes(bytes);
+        return bytes;
+    }
+
+    private String fileLastModified() {
+        return version == 0 ? LAST_MODIFIED : "2024-02-" + (10 + version % 18) + "T12:00:00.000-08:00";
+    }
+
+    /**
+     * Returns the number of folders below the shared folder
+     */
+    long folderCount() {
+        long count = 0;
+        long level = 1;
+        for (int i = 0; i < depth; i++) {
+            level *= fanout;
+            count += level;
+        }
+        return count;
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        sleep(latencyMillis);
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if (method.equals("GET") && path.equals("/user")) {
+            send(exchange, 200, "application/xml", userXml());
+        } else if (method.equals("GET") && path.equals("/user/receivedShares")) {
+            send(exchange, 200, "application/xml", receivedSharesXml());
+        } else if (path.startsWith("/folder/") && path.endsWith("/contents") && method.equals("GET")) {
+            String id = path.substring("/folder/".length(), path.length() - "/contents".length());
+            sendRevalidated(exchange, contentsXml(id, query));
+        } else if (path.startsWith("/folder/") && method.equals("GET")) {
+            send(exchange, 200, "application/xml", folderXml(path.substring("/folder/".length())));
+        } else if (path.startsWith("/folder/") && method.equals("POST")) {
+            drain(exchange.getRequestBody(), 0);
+            exchange.getResponseHeaders().set("Location", base + "/file/upload-" + createdFiles.incrementAndGet());
+            send(exchange, 201, "text/plain", "");
+        } else if (path.startsWith("/file/") && path.endsWith("/data") && method.equals("GET")) {
+            sendData(exchange);
+        } else if (path.startsWith("/file/") && path.endsWith("/data") && method.equals("PUT")) {
+            drain(exchange.getRequestBody(), bytesPerSecond);
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            send(exchange, 404, "text/plain", "Not found: " + method + " " + path);
+        }
+    }
+
+    private String userXml() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><user><username>bench@example.com</username>"
+                + "<nickname>bench</nickname><quota><limit>1099511627776</limit><usage>1073741824</usage></quota>"
+                + "<magicBriefcase>" + folderLink(ROOT_ID) + "</magicBriefcase>"
+                + "<receivedShares>" + base + "/user/receivedShares</receivedShares></user>";
+    }
+
+    private String receivedSharesXml() {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><receivedShares><receivedShare>"
+                + "<displayName>" + SHARE_NAME + "</displayName><sharedFolder>" + folderLink(ROOT_ID)
+                + "</sharedFolder><owner>" + base + "/user/owner</owner><permissions readAllowed=\"true\"/>"
+                + "</receivedShare></receivedShares>";
+    }
+
+    private String folderXml(String id) {
+        String contents = folderLink(id) + "/contents";
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><folder><displayName>" + displayName(id)
+                + "</displayName><dsid>/sc/1/" + id + "</dsid><timeCreated>" + LAST_MODIFIED + "</timeCreated>"
+                + "<collections>" + contents + "?type=folder</collections><files>" + contents
+                + "?type=file</files><contents>" + contents + "</contents></folder>";
+    }
+
+    private String contentsXml(String id, Map<String, String> query) {
+        String type = query.get("type");
+        int folders = levelOf(id) < depth ? fanout : 0;
+        int total = ("file".equals(type) ? 0 : folders) + ("folder".equals(type) ? 0 : filesPerFolder);
+        int start = query.containsKey("start") ? Integer.parseInt(query.get("start")) : 0;
+        int max = query.containsKey("max") ? Integer.parseInt(query.get("max")) : total;
+        int end = Math.min(total, start + max);
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><collectionContents start=\"")
+                .append(start).append("\" hasMore=\"").append(end < total).append("\" end=\"").append(end - 1)
+                .append("\">");
+        for (int i = start; i < end; i++) {
+            int index = i;
+            if (!"file".equals(type) && index < folders) {
+                String child = id + "." + index;
+                xml.append("<collection type=\"folder\"><displayName>").append(displayName(child))
+                        .append("</displayName><ref>").append(folderLink(child)).append("</ref><contents>")
+                        .append(folderLink(child)).append("/contents</contents></collection>");
+                continue;
+            }
+            if (!"file".equals(type)) {
+                index -= folders;
+            }
+            String fileId = id + "-" + index;
+            xml.append("<file><displayName>clip-").append(fileId).append(".mov</displayName><ref>")
+                    .append(base).append("/file/").append(fileId).append("</ref><size>").append(fileSize)
+                    .append("</size><lastModified>").append(fileLastModified()).append("</lastModified>")
+                    .append("<mediaType>video/quicktime</mediaType><presentOnServer>true</presentOnServer>")
+                    .append("<fileData>").append(fileDataLink(fileId)).append("</fileData></file>");
+        }
+        return xml.append("</collectionContents>").toString();
+    }
+
+    /**
+     * Sends the file data, or the requested range of it
+     */
+    private void sendData(HttpExchange exchange) throws IOException {
+        long start = 0;
+        long end = fileSize - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && bounds[1].length() > 0) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start > end) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+        }
+        long length = end - start + 1;
+        long cut = takeCut(length);
+        byte[] block = data;
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(status, length);
+        OutputStream out = exchange.getResponseBody();
+        long begin = System.nanoTime();
+        long sent = 0;
+        while (sent < length) {
+            int offset = (int) ((start + sent) % CHUNK_SIZE);
+            int chunk = (int) Math.min(CHUNK_SIZE - offset, length - sent);
+            if (cut >= 0 && sent + chunk > cut) {
+                out.write(block, offset, (int) (cut - sent));
+                out.flush();
+                // the server drops the connection short of the announced length
+                throw new IOException("Transfer cut after " + cut + " bytes");
+            }
+            out.write(block, offset, chunk);
+            sent += chunk;
+            pace(begin, sent, bytesPerSecond);
+        }
+        out.close();
+    }
+
+    private static void drain(InputStream in, long bytesPerSecond) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long begin = System.nanoTime();
+        long received = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            received += read;
+            pace(begin, received, bytesPerSecond);
+        }
+        in.close();
+    }
+
+    /**
+     * Sleeps until the bytes moved since begin fit the data rate
+     */
+    private static void pace(long begin, long bytes, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (bytes * 1e9 / bytesPerSecond);
+        long aheadMillis = (dueNanos - (System.nanoTime() - begin)) / 1000000;
+        sleep(aheadMillis);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    /**
+     * Sends an xml response with an ETag, or 304 if the client has it
+     */
+    private static void sendRevalidated(HttpExchange exchange, String body) throws IOException {
+        String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        send(exchange, 200, "application/xml", body);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String displayName(String id) {
+        return ROOT_ID.equals(id) ? SHARE_NAME : "folder-" + id;
+    }
+
+    private static int levelOf(String id) {
+        int level = 0;
+        for (int i = 0; i < id.length(); i++) {
+            if (id.charAt(i) == '.') {
+                level++;
+            }
+        }
+        return level;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @file PostProcessor.java
+ *
+ *       Processes the downloaded files while the download is still running:
+ *       every file goes through a chain of steps (run a command, write its
+ *       SHA-256, move it) as soon as it is complete.
+ *
+ *       The DownloadEngine hands the completed files to a bounded queue read
+ *       by a fixed number of worker threads. When the queue is full, the
+ *       download thread which completed a file waits before taking the next
+ *       one, so a slow step holds back the downloads instead of letting the
+ *       downloaded files pile up on the disk: at most "parallelism" files
+ *       being downloaded, "capacity" files waiting and "workers" files being
+ *       processed exist at a time.
+ *
+ *       The steps of a file run in order; a failed step ends the processing
+ *       of that file only.
+ */
+class PostProcessor {
+
+    static final int DEFAULT_WORKERS = 1;
+    static final int DEFAULT_CAPACITY = 4;
+
+    private static final String RUN_STEP = "run:";
+    private static final String MOVE_STEP = "move:";
+    private static final String SHA256_STEP = "sha256";
+    private static final String SHA256_SUFFIX = ".sha256";
+    private static final String FILE_PLACEHOLDER = "{}";
+
+    /**
+     * One step of the processing of a file. Called from the worker threads,
+     * so implementations must be thread safe.
+     */
+    interface Step {
+        /**
+         * @param file
+         *            the file, where the previous step left it
+         * @param download
+         *            the download of the file
+         * @return where the file is after the step
+         * @throws Exception
+         *             if the step fails
+         */
+        File process(File file, DownloadEngine.DownloadResult download) throws Exception;
+    }
+
+    private static final Item END = new Item(null);
+
+    private final List<Step> steps;
+    private final int workers;
+    private final BlockingQueue<Item> queue;
+    private final List<ProcessResult> results = Collections.synchronizedList(new ArrayList<ProcessResult>());
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * @param steps
+     *            the steps every file goes through, in order
+     * @param workers
+     *            the number of files processed at the same time
+     * @param capacity
+     *            the number of completed files which may wait for a worker
+     *            before the downloads are held back
+     */
+    PostProcessor(List<Step> steps, int workers, int capacity) {
+        this.steps = new ArrayList<Step>(steps);
+        this.workers = Math.max(1, workers);
+        this.queue = new ArrayBlockingQueue<Item>(Math.max(1, capacity));
+    }
+
+    /**
+     * Parses a chain of steps separated by ";" (a ";" between double quotes
+     * belongs to the step):
+     *
+     * run:<command> runs a command, with {} replaced by the file path (or the
+     * path appended when there is no {}); a non zero exit status fails
+     *
+     * sha256 writes the SHA-256 of the file next to it, as <file>.sha256 in
+     * the format of sha256sum
+     *
+     * move:<dir> moves the file, and its .sha256, into a directory
+     *
+     * @param spec
+     *            the steps, e.g. "run:transcode.sh {}; sha256; move:/data/done"
+     * @return the steps, in order
+     * @throws IllegalArgumentException
+     *             if a step is not valid
+     */
+    static List<Step> parse(String spec) {
+        List<Step> steps = new ArrayList<Step>();
+        for (String part : splitSteps(spec)) {
+            String step = part.trim();
+            if (step.isEmpty()) {
+                continue;
+            }
+            if (step.startsWith(RUN_STEP)) {
+                List<String> command = DaemonServer.split(step.substring(RUN_STEP.length()));
+                if (command.isEmpty()) {
+                    throw new IllegalArgumentException("Post processing step \"" + step + "\" has no command");
+                }
+                steps.add(new RunCommand(command));
+            } else if (step.startsWith(MOVE_STEP)) {
+                String directory = step.substring(MOVE_STEP.length()).trim();
+                if (directory.isEmpty()) {
+                    throw new IllegalArgumentException("Post processing step \"" + step + "\" has no directory");
+                }
+                steps.add(new MoveTo(new File(directory)));
+            } else if (step.equals(SHA256_STEP)) {
+                steps.add(new WriteSha256());
+            } else {
+                throw new IllegalArgumentException("Unknown post processing step \"" + step
+                        + "\", expected run:<command>, sha256 or move:<dir>");
+            }
+        }
+        return steps;
+    }
+
+    private static List<String> splitSteps(String spec) {
+        List<String> parts = new ArrayList<String>();
+        boolean quoted = false;
+        int begin = 0;
+        for (int i = 0; i < spec.length(); i++) {
+            char c = spec.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ';' && !quoted) {
+                parts.add(spec.substring(begin, i));
+                begin = i + 1;
+            }
+        }
+        parts.add(spec.substring(begin));
+        return parts;
+    }
+
+    /**
+     * Starts the worker threads
+     */
+    void start() {
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Item item;
+                        while ((item = queue.take()) != END) {
+                            Telemetry.recordQueueWait("postprocess", System.nanoTime() - item.queuedAt);
+                            results.add(process(item.download));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "postprocess-worker-" + i);
+            worker.setDaemon(true);
+            threads.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a downloaded file, waiting while the queue is full
+     *
+     * @param download
+     *            the successful download of the file
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    void submit(DownloadEngine.DownloadResult download) throws InterruptedException {
+        queue.put(new Item(download));
+    }
+
+    /**
+     * Waits for the queued files to be processed and stops the workers
+     *
+     * @return the processing results in completion order
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting
+     */
+    List<ProcessResult> finish() throws InterruptedException {
+        for (int i = 0; i < threads.size(); i++) {
+            queue.put(END);
+        }
+        for (Thread worker : threads) {
+            worker.join();
+        }
+        threads.clear();
+        return new ArrayList<ProcessResult>(results);
+    }
+
+    private ProcessResult process(DownloadEngine.DownloadResult download) {
+        long start = System.nanoTime();
+        File file = new File(download.fileName);
+        try {
+            for (Step step : steps) {
+                file = step.process(file, download);
+            }
+            return new ProcessResult(download.fileName, file, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            System.out.println("Processing of " + download.fileName + " failed: " + e.getMessage());
+            return new ProcessResult(download.fileName, file, System.nanoTime() - start, e.toString());
+        }
+    }
+
+    /**
+     * Prints where every file ended and how long its processing took
+     *
+     * @param results
+     *            the processing results
+     */
+    static void printReport(List<ProcessResult> results) {
+        DecimalFormat threeDForm = new DecimalFormat("#.###");
+        System.out.println("\n---PROCESSING REPORT---");
+        for (ProcessResult result : results) {
+            String status = result.isSuccessful() ? "" : " FAILED: " + result.error;
+            System.out.println(result.fileName + " -> " + result.file.getPath() + " in "
+                    + threeDForm.format(result.nanos / 1e9) + " s" + status);
+        }
+    }
+
+    /**
+     * A downloaded file waiting for a worker
+     */
+    private static class Item {
+        private final DownloadEngine.DownloadResult download;
+        private final long queuedAt = System.nanoTime();
+
+        private Item(DownloadEngine.DownloadResult download) {
+            this.download = download;
+        }
+    }
+
+    /**
+     * The outcome of the processing of a file
+     */
+    static class ProcessResult {
+        final String fileName;
+        // where the file was left by the last step which ran
+        final File file;
+        final long nanos;
+        final String error;
+
+        ProcessResult(String fileName, File file, long nanos, String error) {
+            this.fileName = fileName;
+            this.file = file;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        boolean isSuccessful() {
+            return error == null;
+        }
+    }
+
+    /**
+     * Runs a command on the file. Its output goes to the output of the tool,
+     * or of the daemon job.
+     */
+    private static class RunCommand implements Step {
+        private final List<String> command;
+
+        private RunCommand(List<String> command) {
+            this.command = command;
+        }
+
+        public File process(File file, DownloadEngine.DownloadResult download) throws Exception {
+            List<String> words = new ArrayList<String>();
+            boolean placed = false;
+            for (String word : command) {
+                placed |= word.contains(FILE_PLACEHOLDER);
+                words.add(word.replace(FILE_PLACEHOLDER, file.getPath()));
+            }
+            if (!placed) {
+                words.add(file.getPath());
+            }
+            Process process = new ProcessBuilder(words).redirectErrorStream(true).start();
+            process.getOutputStream().close();
+            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    System.out.println(line);
+                }
+            } finally {
+                output.close();
+            }
+            int status = process.waitFor();
+            if (status != 0) {
+                throw new IOException(words.get(0) + " exited with status " + status);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Writes the SHA-256 of the whole file to <file>.sha256, so the file can
+     * be checked with "sha256sum -c". This is the plain digest of the file,
+     * not its ContentHash, so the file is read again.
+     */
+    private static class WriteSha256 implements Step {
+        public File process(File file, DownloadEngine.DownloadResult download) throws Exception {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            byte[] buffer = new byte[1024 * 1024];
+            InputStream in = new FileInputStream(file);
+            try {
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(file.getPath() + SHA256_SUFFIX), "UTF-8");
+            try {
+                out.write(hex + "  " + file.getName() + "\n");
+            } finally {
+                out.close();
+            }
+            return file;
+        }
+    }
+
+    /**
+     * Moves the file, and the .sha256 written for it, into a directory,
+     * replacing a file of the same name
+     */
+    private static class MoveTo implements Step {
+        private final File directory;
+
+        private MoveTo(File directory) {
+            this.directory = directory;
+        }
+
+        public File process(File file, DownloadEngine.DownloadResult download) throws Exception {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Cannot create directory " + directory);
+            }
+            File target = new File(directory, file.getName());
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            File sha256 = new File(file.getPath() + SHA256_SUFFIX);
+            if (sha256.isFile()) {
+                Files.move(sha256.toPath(), new File(target.getPath() + SHA256_SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @file RecordWriter.java
+ *
+ *       Writes records to the standard output for programs, with the "-format"
+ *       of the command line:
+ *
+ *       - json: one JSON array, one record per line
+ *
+ *       - ndjson: one JSON object per line, nothing else
+ *
+ *       Records are written as they are produced, so a listing is never held
+ *       in memory and a consumer can start on the first entries while the
+ *       rest is still being read. The output is buffered; a flusher thread
+ *       writes out the buffered records every FLUSH_INTERVAL_MILLIS, so
+ *       records parsed in one burst are not held back while the reader waits
+ *       for the next page.
+ */
+class RecordWriter {
+
+    static final String TEXT = "text";
+    static final String JSON = "json";
+    static final String NDJSON = "ndjson";
+    static final List<String> FORMATS = Arrays.asList(TEXT, JSON, NDJSON);
+
+    static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private final boolean array;
+    private boolean first = true;
+    // records written since the last flush
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Starts the output and its flusher thread. Must be created in the
+     * thread of the command, so that the flusher inherits the output of a
+     * daemon job.
+     *
+     * @param format
+     *            JSON or NDJSON
+     */
+    RecordWriter(String format) {
+        try {
+            this.out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), BUFFER_SIZE);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        this.array = JSON.equals(format);
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                flushPeriodically();
+            }
+        }, "record-writer-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Writes one record
+     *
+     * @param record
+     *            the record
+     * @throws IOException
+     *             if the output cannot be written
+     */
+    synchronized void write(Record record) throws IOException {
+        if (array) {
+            out.write(first ? "[\n" : ",\n");
+        }
+        first = false;
+        out.write(record.toJson());
+        if (!array) {
+            out.write('\n');
+        }
+        dirty = true;
+    }
+
+    /**
+     * Ends the output, flushes it and stops the flusher. The standard output
+     * stays open.
+     *
+     * @param complete
+     *            false after a failure: a JSON array is left unterminated, so
+     *            the consumer can tell the output is incomplete
+     * @throws IOException
+     *             if the output cannot be written
+     */
+    synchronized void close(boolean complete) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        if (array && complete) {
+            out.write(first ? "[]\n" : "\n]\n");
+        }
+        out.flush();
+    }
+
+    private synchronized void flushPeriodically() {
+        while (!closed) {
+            try {
+                wait(FLUSH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (dirty && !closed) {
+                dirty = false;
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    // the next write or close reports the error
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a record from the entry of a folder listing, with its full
+     * metadata
+     *
+     * @param path
+     *            the path of the entry relative to the listed folder
+     * @param entry
+     *            the file or folder
+     * @return the record
+     */
+    static Record entry(String path, RemoteEntry entry) {
+        Record record = new Record().field("type", entry.collection ? "folder" : "file").field("path", path)
+                .field("displayName", entry.displayName).field("ref", entry.ref);
+        if (!entry.collection) {
+            record.field("size", entry.size).field("mediaType", entry.mediaType)
+                    .field("lastModified", entry.lastModified);
+        }
+        return record;
+    }
+
+    /**
+     * A JSON object, built field by field in the order of the calls
+     */
+    static class Record {
+        private final StringBuilder json = new StringBuilder("{");
+
+        /**
+         * Adds a string field, null written as null
+         */
+        Record field(String name, String value) {
+            name(name);
+            if (value == null) {
+                json.append("null");
+            } else {
+                quote(json, value);
+            }
+            return this;
+        }
+
+        /**
+         * Adds a number field
+         */
+        Record field(String name, long value) {
+            name(name);
+            json.append(value);
+            return this;
+        }
+
+        String toJson() {
+            return json.toString() + "}";
+        }
+
+        private void name(String name) {
+            if (json.length() > 1) {
+                json.append(",");
+            }
+            quote(json, name);
+            json.append(":");
+        }
+    }
+
+    private static void quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c == '\n') {
+                json.append("\\n");
+            } else if (c == '\r') {
+                json.append("\\r");
+            } else if (c == '\t') {
+                json.append("\\t");
+            } else if (c < 0x20) {
+                json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
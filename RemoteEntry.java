@@ -0,0 +1,47 @@
+package com.sugarsync.sample.tool;
+
+import java.util.Map;
+
+/**
+ * @file RemoteEntry.java
+ *
+ *       A file or a collection (folder) listed in a SugarSync
+ *       collectionContents response.
+ */
+class RemoteEntry {
+
+    final boolean collection;
+    final String displayName;
+    final String ref;
+    final long size;
+    final String lastModified;
+    final String mediaType;
+    final String fileData;
+
+    RemoteEntry(boolean collection, String displayName, String ref, long size, String lastModified, String mediaType,
+            String fileData) {
+        this.collection = collection;
+        this.displayName = displayName;
+        this.ref = ref;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.mediaType = mediaType;
+        this.fileData = fileData;
+    }
+
+    /**
+     * Builds an entry from the child elements of a file or collection element
+     *
+     * @param collection
+     *            true for a collection element, false for a file element
+     * @param fields
+     *            the child element names mapped to their text
+     * @return the entry
+     */
+    static RemoteEntry fromFields(boolean collection, Map<String, String> fields) {
+        String size = fields.get("size");
+        return new RemoteEntry(collection, fields.get("displayName"), fields.get("ref"),
+                size == null || size.length() == 0 ? 0 : Long.parseLong(size), fields.get("lastModified"),
+                fields.get("mediaType"), fields.get("fileData"));
+    }
+}
@@ -0,0 +1,235 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @file RemoteIndex.java
+ *
+ *       A local copy of the listings of remote folder trees, so that the
+ *       ChangePoller only lists again the folders which changed.
+ *
+ *       For every folder, keyed by its link, the index keeps the refs, sizes
+ *       and timestamps of its files, the links of its sub folders and the
+ *       validators (ETag, Last-Modified) of the pages of its listing. The
+ *       index is a binary file, read once and written back with an atomic
+ *       rename, shared by all the commands of the process.
+ */
+class RemoteIndex {
+
+    static final String DEFAULT_INDEX_NAME = ".sugarsync-remote-index";
+
+    private static final int FILE_VERSION = 1;
+    private static final Map<File, RemoteIndex> OPEN_INDEXES = new HashMap<File, RemoteIndex>();
+
+    private final File indexFile;
+    private final Map<String, Folder> folders = new HashMap<String, Folder>();
+
+    private RemoteIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the index stored in a file, reading it on first use. A missing
+     * or unreadable file gives an empty index.
+     *
+     * @param indexFile
+     *            the index file
+     * @return the index, the same instance for every caller
+     */
+    static RemoteIndex open(File indexFile) {
+        File key = indexFile.getAbsoluteFile();
+        synchronized (OPEN_INDEXES) {
+            RemoteIndex index = OPEN_INDEXES.get(key);
+            if (index == null) {
+                index = new RemoteIndex(key);
+                index.load();
+                OPEN_INDEXES.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the last known listing of a folder
+     *
+     * @param folderLink
+     *            the link of the folder representation
+     * @return the folder, or null if it was never listed
+     */
+    synchronized Folder get(String folderLink) {
+        return folders.get(folderLink);
+    }
+
+    /**
+     * Replaces the listing of a folder
+     */
+    synchronized void put(String folderLink, Folder folder) {
+        folders.put(folderLink, folder);
+    }
+
+    /**
+     * Forgets the listing of a folder
+     */
+    synchronized void remove(String folderLink) {
+        folders.remove(folderLink);
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it into place
+     *
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    synchronized void save() throws IOException {
+        File tmpFile = Files.createTempFile(indexFile.getAbsoluteFile().getParentFile().toPath(),
+                indexFile.getName() + ".", ".tmp").toFile();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(folders.size());
+                for (Map.Entry<String, Folder> entry : folders.entrySet()) {
+                    Folder folder = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(folder.contentsLink);
+                    out.writeInt(folder.pageSize);
+                    out.writeInt(folder.pages.size());
+                    for (CollectionContentsReader.Page page : folder.pages) {
+                        out.writeLong(page.start);
+                        writeOptional(out, page.etag);
+                        writeOptional(out, page.lastModified);
+                    }
+                    out.writeInt(folder.files.size());
+                    for (RemoteEntry file : folder.files.values()) {
+                        out.writeUTF(file.displayName);
+                        writeOptional(out, file.ref);
+                        out.writeLong(file.size);
+                        writeOptional(out, file.lastModified);
+                        writeOptional(out, file.mediaType);
+                        writeOptional(out, file.fileData);
+                    }
+                    out.writeInt(folder.folders.size());
+                    for (Map.Entry<String, String> subFolder : folder.folders.entrySet()) {
+                        out.writeUTF(subFolder.getKey());
+                        out.writeUTF(subFolder.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // left only if the write or the move failed
+            tmpFile.delete();
+        }
+    }
+
+    private void load() {
+        if (!indexFile.isFile()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String folderLink = in.readUTF();
+                    String contentsLink = in.readUTF();
+                    int pageSize = in.readInt();
+                    List<CollectionContentsReader.Page> pages = new ArrayList<CollectionContentsReader.Page>();
+                    int pageCount = in.readInt();
+                    for (int j = 0; j < pageCount; j++) {
+                        pages.add(new CollectionContentsReader.Page(in.readLong(), readOptional(in),
+                                readOptional(in)));
+                    }
+                    Map<String, RemoteEntry> files = new TreeMap<String, RemoteEntry>();
+                    int fileCount = in.readInt();
+                    for (int j = 0; j < fileCount; j++) {
+                        String displayName = in.readUTF();
+                        files.put(displayName, new RemoteEntry(false, displayName, readOptional(in), in.readLong(),
+                                readOptional(in), readOptional(in), readOptional(in)));
+                    }
+                    Map<String, String> subFolders = new TreeMap<String, String>();
+                    int folderCount = in.readInt();
+                    for (int j = 0; j < folderCount; j++) {
+                        subFolders.put(in.readUTF(), in.readUTF());
+                    }
+                    folders.put(folderLink, new Folder(contentsLink, pageSize, pages, files, subFolders));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a damaged index is ignored, the next poll lists everything again
+            folders.clear();
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * The listing of a folder. Never changed once built: a new listing
+     * replaces it.
+     */
+    static class Folder {
+        final String contentsLink;
+        final int pageSize;
+        final List<CollectionContentsReader.Page> pages;
+        // files by displayName
+        final Map<String, RemoteEntry> files;
+        // sub folder links by displayName
+        final Map<String, String> folders;
+
+        Folder(String contentsLink, int pageSize, List<CollectionContentsReader.Page> pages,
+                Map<String, RemoteEntry> files, Map<String, String> folders) {
+            this.contentsLink = contentsLink;
+            this.pageSize = pageSize;
+            this.pages = Collections.unmodifiableList(pages);
+            this.files = Collections.unmodifiableMap(files);
+            this.folders = Collections.unmodifiableMap(folders);
+        }
+
+        /**
+         * Returns true if every page of the listing can be revalidated
+         */
+        boolean hasValidators() {
+            if (pages.isEmpty()) {
+                return false;
+            }
+            for (CollectionContentsReader.Page page : pages) {
+                if (page.etag == null && page.lastModified == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @file RemoteSnapshot.java
+ *
+ *       A read only copy of one indexed remote folder tree, laid out for
+ *       queries: the find, du and stat commands answer from it without any
+ *       request.
+ *
+ *       The files are stored by column in primitive arrays (folder, size,
+ *       modification time, media type) and their names in one UTF-8 byte
+ *       array, so an entry costs a few dozen bytes of heap instead of an
+ *       object graph; millions of entries fit in a modest heap. Folders are
+ *       stored parents first. The file has the same layout and is read back
+ *       through a memory mapping with bulk copies.
+ *
+ *       The "changes" command writes the snapshot of its folder after every
+ *       poll.
+ */
+class RemoteSnapshot {
+
+    private static final int FILE_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final long takenAt;
+
+    // folder paths relative to the root, "" for the root, parents first
+    private final String[] folderPaths;
+    private final int[] folderParents;
+
+    private final String[] mediaTypes;
+
+    private final int[] fileFolders;
+    private final int[] nameOffsets;
+    private final byte[] names;
+    private final long[] sizes;
+    private final long[] modified;
+    // index in mediaTypes, -1 for none
+    private final int[] types;
+
+    private RemoteSnapshot(long takenAt, String[] folderPaths, int[] folderParents, String[] mediaTypes,
+            int[] fileFolders, int[] nameOffsets, byte[] names, long[] sizes, long[] modified, int[] types) {
+        this.takenAt = takenAt;
+        this.folderPaths = folderPaths;
+        this.folderParents = folderParents;
+        this.mediaTypes = mediaTypes;
+        this.fileFolders = fileFolders;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+        this.sizes = sizes;
+        this.modified = modified;
+        this.types = types;
+    }
+
+    /**
+     * Returns the snapshot file of a folder of a share, next to the remote
+     * index file
+     */
+    static File fileFor(File indexFile, String share, String folder) {
+        return new File(indexFile.getPath() + "." + fileNamePart(share) + "." + fileNamePart(folder));
+    }
+
+    /**
+     * Copies the tree below a folder out of the remote index
+     *
+     * @param index
+     *            the remote index
+     * @param folderLink
+     *            the link of the root folder of the tree
+     * @return the snapshot; folders missing from the index are empty
+     */
+    static RemoteSnapshot build(RemoteIndex index, String folderLink) {
+        List<String> folderPaths = new ArrayList<String>();
+        List<String> folderLinks = new ArrayList<String>();
+        IntList folderParents = new IntList();
+        Map<String, Integer> typeIds = new HashMap<String, Integer>();
+        List<String> mediaTypes = new ArrayList<String>();
+        IntList fileFolders = new IntList();
+        IntList nameOffsets = new IntList();
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        LongList sizes = new LongList();
+        LongList modified = new LongList();
+        IntList types = new IntList();
+
+        folderPaths.add("");
+        folderLinks.add(folderLink);
+        folderParents.add(-1);
+        nameOffsets.add(0);
+        // folders are appended while walking, so parents come first
+        for (int folderId = 0; folderId < folderLinks.size(); folderId++) {
+            RemoteIndex.Folder folder = index.get(folderLinks.get(folderId));
+            if (folder == null) {
+                continue;
+            }
+            for (RemoteEntry file : folder.files.values()) {
+                fileFolders.add(folderId);
+                byte[] name = file.displayName.getBytes(UTF8);
+                names.write(name, 0, name.length);
+                nameOffsets.add(names.size());
+                sizes.add(file.size);
+                modified.add(file.lastModified == null ? EntryFilter.UNKNOWN_TIME : EntryFilter
+                        .parseLastModified(file.lastModified));
+                if (file.mediaType == null) {
+                    types.add(-1);
+                } else {
+                    Integer typeId = typeIds.get(file.mediaType);
+                    if (typeId == null) {
+                        typeId = mediaTypes.size();
+                        typeIds.put(file.mediaType, typeId);
+                        mediaTypes.add(file.mediaType);
+                    }
+                    types.add(typeId);
+                }
+            }
+            for (Map.Entry<String, String> subFolder : folder.folders.entrySet()) {
+                folderPaths.add(folderPaths.get(folderId) + subFolder.getKey() + "/");
+                folderLinks.add(subFolder.getValue());
+                folderParents.add(folderId);
+            }
+        }
+        return new RemoteSnapshot(System.currentTimeMillis(), folderPaths.toArray(new String[folderPaths.size()]),
+                folderParents.toArray(), mediaTypes.toArray(new String[mediaTypes.size()]), fileFolders.toArray(),
+                nameOffsets.toArray(), names.toByteArray(), sizes.toArray(), modified.toArray(), types.toArray());
+    }
+
+    /**
+     * Reads a snapshot file
+     *
+     * @param file
+     *            the snapshot file
+     * @return the snapshot, or null if there is none or it was written by
+     *         another version
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    static RemoteSnapshot read(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.getInt() != FILE_VERSION) {
+                return null;
+            }
+            long takenAt = buffer.getLong();
+            String[] folderPaths = readStrings(buffer);
+            int[] folderParents = readInts(buffer);
+            String[] mediaTypes = readStrings(buffer);
+            int[] fileFolders = readInts(buffer);
+            int[] nameOffsets = readInts(buffer);
+            byte[] names = new byte[buffer.getInt()];
+            buffer.get(names);
+            long[] sizes = readLongs(buffer);
+            long[] modified = readLongs(buffer);
+            int[] types = readInts(buffer);
+            return new RemoteSnapshot(takenAt, folderPaths, folderParents, mediaTypes, fileFolders, nameOffsets,
+                    names, sizes, modified, types);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and renames it into place
+     *
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    void write(File file) throws IOException {
+        File tmpFile = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+                file.getName() + ".", ".tmp").toFile();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(takenAt);
+                writeStrings(out, folderPaths);
+                writeInts(out, folderParents);
+                writeStrings(out, mediaTypes);
+                writeInts(out, fileFolders);
+                writeInts(out, nameOffsets);
+                out.writeInt(names.length);
+                out.write(names);
+                writeLongs(out, sizes);
+                writeLongs(out, modified);
+                writeInts(out, types);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // left only if the write or the move failed
+            tmpFile.delete();
+        }
+    }
+
+    int fileCount() {
+        return sizes.length;
+    }
+
+    int folderCount() {
+        return folderPaths.length;
+    }
+
+    /**
+     * Returns the path of a file relative to the root folder
+     */
+    String path(int file) {
+        return folderPaths[fileFolders[file]] + name(file);
+    }
+
+    /**
+     * Returns the path of a folder relative to the root folder, "" for the
+     * root, ending with / otherwise
+     */
+    String folderPath(int folder) {
+        return folderPaths[folder];
+    }
+
+    long size(int file) {
+        return sizes[file];
+    }
+
+    /**
+     * Returns the last modification of a file in milliseconds since the
+     * epoch, or EntryFilter.UNKNOWN_TIME
+     */
+    long modified(int file) {
+        return modified[file];
+    }
+
+    /**
+     * Returns the media type of a file, or null
+     */
+    String mediaType(int file) {
+        return types[file] == -1 ? null : mediaTypes[types[file]];
+    }
+
+    /**
+     * Returns true if the file is selected by the filter
+     */
+    boolean matches(int file, EntryFilter filter) {
+        return filter.matches(name(file), sizes[file], mediaType(file), modified[file]);
+    }
+
+    /**
+     * Adds up the files selected by the filter per folder, sub folders
+     * included
+     *
+     * @param filter
+     *            the filter
+     * @param bytes
+     *            receives the total size per folder, one slot per folder
+     * @param counts
+     *            receives the number of files per folder, one slot per
+     *            folder
+     */
+    void folderTotals(EntryFilter filter, long[] bytes, long[] counts) {
+        for (int file = 0; file < sizes.length; file++) {
+            if (matches(file, filter)) {
+                bytes[fileFolders[file]] += sizes[file];
+                counts[fileFolders[file]]++;
+            }
+        }
+        // children come after their parent, so a reverse pass rolls them up
+        for (int folder = folderPaths.length - 1; folder > 0; folder--) {
+            bytes[folderParents[folder]] += bytes[folder];
+            counts[folderParents[folder]] += counts[folder];
+        }
+    }
+
+    private String name(int file) {
+        return new String(names, nameOffsets[file], nameOffsets[file + 1] - nameOffsets[file], UTF8);
+    }
+
+    private static String fileNamePart(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            byte[] bytes = value.getBytes(UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        String[] values = new String[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            values[i] = new String(bytes, UTF8);
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 4);
+        return values;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer buffer) {
+        long[] values = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + values.length * 8);
+        return values;
+    }
+
+    /**
+     * A growable int array
+     */
+    private static class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    /**
+     * A growable long array
+     */
+    private static class LongList {
+        private long[] values = new long[16];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
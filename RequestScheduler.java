@@ -0,0 +1,267 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @file RequestScheduler.java
+ *
+ *       Paces the API requests of all the threads of the tool.
+ *
+ *       - a token bucket lets at most "rate" requests per second through. The
+ *       rate starts at the configured ceiling, is halved on every 429
+ *       response and grows back slowly with each successful response
+ *       (additive increase, multiplicative decrease), so the tool settles just
+ *       below the rate the server accepts
+ *
+ *       - a Retry-After delay stops all the requests, not only the throttled
+ *       one
+ *
+ *       - retries wait an exponential backoff with full jitter, so parallel
+ *       transfers that failed together do not retry together
+ *
+ *       - every endpoint (host and first path element, e.g. "/folder") has a
+ *       circuit breaker: after a run of consecutive failures its requests
+ *       fail at once during a cool down, then a single trial request decides
+ *       whether it closes again
+ */
+class RequestScheduler {
+
+    static final double DEFAULT_MAX_RATE = 20;
+    static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final double MIN_RATE = 0.5;
+    // rate regained per successful response, in requests per second
+    private static final double RATE_INCREASE = 0.1;
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    private static final int FAILURES_TO_OPEN = 5;
+    private static final long OPEN_MILLIS = 30 * 1000;
+
+    private final double maxRate;
+    private final int maxRetries;
+    private final Random random = new Random();
+
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = System.nanoTime();
+
+    private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxRate
+     *            the maximum number of requests per second
+     * @param maxRetries
+     *            the maximum number of times a request is retried
+     */
+    RequestScheduler(double maxRate, int maxRetries) {
+        this.maxRate = maxRate;
+        this.maxRetries = maxRetries;
+        this.rate = maxRate;
+        this.tokens = Math.max(1, maxRate);
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Waits until the rate limit lets a request through
+     *
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    void acquire() throws InterruptedIOException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                double capacity = Math.max(1, rate);
+                tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+                lastRefill = now;
+                if (now - pausedUntil < 0) {
+                    waitNanos = pausedUntil - now;
+                } else if (tokens >= 1) {
+                    tokens -= 1;
+                    return;
+                } else {
+                    waitNanos = (long) ((1 - tokens) / rate * 1e9);
+                }
+            }
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        }
+    }
+
+    /**
+     * Fails at once if the circuit of the endpoint is open. Called once per
+     * request, not for its retries.
+     *
+     * @param endpoint
+     *            the endpoint of the request
+     * @return true if the request is the trial of a half open circuit; the
+     *         caller must then call endTrial once the request is done
+     * @throws IOException
+     *             if the endpoint is failing
+     */
+    boolean checkCircuit(String endpoint) throws IOException {
+        synchronized (circuits) {
+            Circuit circuit = circuits.get(endpoint);
+            if (circuit == null || circuit.failures < FAILURES_TO_OPEN) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (now < circuit.openUntil || circuit.trial != null) {
+                rejected.incrementAndGet();
+                throw new IOException("Too many failures from " + endpoint + ", not sending requests until "
+                        + new Date(circuit.openUntil));
+            }
+            // half open: let a single trial request through, with its retries
+            circuit.trial = Thread.currentThread();
+            return true;
+        }
+    }
+
+    /**
+     * Ends the trial request of a half open circuit started by the calling
+     * thread, whatever its outcome (a throttled, rejected or interrupted
+     * trial records neither a success nor a failure), so that the next
+     * request can be the trial
+     *
+     * @param endpoint
+     *            the endpoint of the request
+     */
+    void endTrial(String endpoint) {
+        synchronized (circuits) {
+            Circuit circuit = circuits.get(endpoint);
+            if (circuit != null && circuit.trial == Thread.currentThread()) {
+                circuit.trial = null;
+            }
+        }
+    }
+
+    /**
+     * Records a successful response: the circuit of the endpoint closes and
+     * the rate grows back towards the maximum
+     *
+     * @param endpoint
+     *            the endpoint of the request
+     */
+    void onSuccess(String endpoint) {
+        synchronized (circuits) {
+            circuits.remove(endpoint);
+        }
+        synchronized (this) {
+            rate = Math.min(maxRate, rate + RATE_INCREASE);
+        }
+    }
+
+    /**
+     * Records a 429 response: the rate is halved and, if the server sent a
+     * Retry-After delay, all the requests wait for it
+     *
+     * @param retryAfterMillis
+     *            the Retry-After delay, or 0 if there is none
+     */
+    void onThrottled(long retryAfterMillis) {
+        throttled.incrementAndGet();
+        synchronized (this) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            tokens = Math.min(tokens, 0);
+            if (retryAfterMillis > 0) {
+                long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+                if (until - pausedUntil > 0) {
+                    pausedUntil = until;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a server error or a failed connection to the endpoint
+     *
+     * @param endpoint
+     *            the endpoint of the request
+     */
+    void onFailure(String endpoint) {
+        synchronized (circuits) {
+            Circuit circuit = circuits.get(endpoint);
+            if (circuit == null) {
+                circuit = new Circuit();
+                circuits.put(endpoint, circuit);
+            }
+            circuit.failures++;
+            if (circuit.failures >= FAILURES_TO_OPEN) {
+                circuit.openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+            }
+        }
+    }
+
+    /**
+     * Waits before retrying a request
+     *
+     * @param attempt
+     *            the number of the failed attempt, starting at 0
+     * @param retryAfterMillis
+     *            the Retry-After delay sent by the server, or 0 to use the
+     *            backoff
+     * @throws InterruptedIOException
+     *             if the thread is interrupted while waiting
+     */
+    void backoff(int attempt, long retryAfterMillis) throws InterruptedIOException {
+        retries.incrementAndGet();
+        long delay = retryAfterMillis;
+        if (delay <= 0) {
+            long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+            synchronized (random) {
+                delay = (long) (random.nextDouble() * ceiling);
+            }
+        }
+        sleep(delay);
+    }
+
+    /**
+     * Prints the number of retried, throttled and rejected requests
+     */
+    void printMetrics() {
+        double currentRate;
+        synchronized (this) {
+            currentRate = rate;
+        }
+        System.out.println("Retried requests: " + retries.get());
+        System.out.println("Throttled responses: " + throttled.get());
+        System.out.println("Requests rejected by an open circuit: " + rejected.get());
+        System.out.println("Request rate: " + Math.round(currentRate * 10) / 10.0 + "/s (max " + maxRate + "/s)");
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+    }
+
+    /**
+     * The failure count of an endpoint
+     */
+    private static class Circuit {
+        int failures;
+        long openUntil;
+        // the thread sending the trial request, null if there is none
+        Thread trial;
+    }
+}
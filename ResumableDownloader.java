@@ -0,0 +1,492 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @file ResumableDownloader.java
+ *
+ *       Downloads a file data link in segments using HTTP Range requests.
+ *
+ *       The data is written into "<file>.part", preallocated to the remote
+ *       size, and every completed segment is recorded in the
+ *       "<file>.part.journal" sidecar. When a download is restarted only the
+ *       segments missing from the journal are requested.
+ *
+ *       The first line of the journal records the version of the remote file
+ *       (its ref, size and lastModified). A partial download of another
+ *       version is discarded, so bytes of a replaced remote file are never
+ *       mixed with the new ones. Every 206 response must also carry the
+ *       Content-Range that was requested.
+ *
+ *       Segments of a large file are fetched over several connections at the
+ *       same time, each one writing straight to its offset in the part file
+ *       with positional FileChannel writes. When the server does not answer a
+ *       range request with 206 the file is fetched as a single stream.
+ *
+ *       The part file is renamed into place once every segment is in the
+ *       journal and its size matches the remote size.
+ *
+ *       Every segment is hashed while it is written and the digests of its
+ *       blocks are kept in the journal with it, so the content hash of the
+ *       file is known at the end without reading it again, also after a
+ *       restart. Segments are whole numbers of hash blocks for that reason.
+ */
+class ResumableDownloader {
+
+    static final String PART_SUFFIX = ".part";
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final String VERSION_PREFIX = "version ";
+
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    static final int DEFAULT_SEGMENTS = 4;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String accessToken;
+    private final long segmentSize;
+    private final int segments;
+
+    /**
+     * @param accessToken
+     *            the access token
+     */
+    ResumableDownloader(String accessToken) {
+        this(accessToken, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param segmentSize
+     *            the size of a single range request
+     * @param segments
+     *            the number of connections used for a single file
+     */
+    ResumableDownloader(String accessToken, long segmentSize, int segments) {
+        this.accessToken = accessToken;
+        this.segmentSize = ContentHash.alignToBlocks(segmentSize);
+        this.segments = Math.max(1, segments);
+    }
+
+    /**
+     * Downloads a remote file, resuming a previous partial download of the
+     * same version if any
+     *
+     * @param file
+     *            the remote file
+     * @param fileName
+     *            the local file name
+     * @return the number of bytes transferred by this call and the content
+     *         hash of the file
+     * @throws IOException
+     *             if any I/O error occurs or the downloaded size does not
+     *             match the remote size
+     */
+    DownloadedFile download(RemoteEntry file, String fileName) throws IOException {
+        return download(file.fileData, fileName, file.size, versionOf(file.ref, file.size, file.lastModified));
+    }
+
+    /**
+     * Downloads the file data, resuming a previous partial download of the
+     * same version if any
+     *
+     * @param link
+     *            the file data link
+     * @param fileName
+     *            the local file name
+     * @param size
+     *            the remote file size in bytes
+     * @param version
+     *            identifies the remote content, see versionOf
+     * @return the number of bytes transferred by this call and the content
+     *         hash of the file
+     * @throws IOException
+     *             if any I/O error occurs or the downloaded size does not
+     *             match the remote size
+     */
+    DownloadedFile download(final String link, String fileName, final long size, String version)
+            throws IOException {
+        File target = new File(fileName);
+        File part = new File(fileName + PART_SUFFIX);
+        File journalFile = new File(fileName + PART_SUFFIX + JOURNAL_SUFFIX);
+
+        if (part.exists() && !version.equals(readVersion(journalFile))) {
+            System.out.println("Remote file changed since the partial download of " + fileName + ", starting over");
+            part.delete();
+        }
+        if (!part.exists()) {
+            journalFile.delete();
+        }
+        List<long[]> missing = missingRanges(readJournal(journalFile), size, segmentSize);
+
+        long transferred = 0;
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        final Journal journal = new Journal(journalFile, version);
+        try {
+            file.setLength(size);
+            final FileChannel out = file.getChannel();
+            if (missing.size() > 1 && segments > 1 && supportsRanges(link)) {
+                transferred = fetchSegments(link, out, journal, missing, size);
+            } else {
+                for (long[] range : missing) {
+                    Segment written = fetchRange(link, out, range[0], range[1], size);
+                    transferred += written.end - written.start;
+                    journal.record(written);
+                    if (written.start == 0 && written.end == size) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            journal.close();
+            file.close();
+        }
+
+        List<Segment> done = readJournal(journalFile);
+        if (!missingRanges(done, size, segmentSize).isEmpty() || part.length() != size) {
+            throw new IOException("Downloaded size " + part.length() + " of " + fileName
+                    + " does not match remote size " + size);
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journalFile.delete();
+        return new DownloadedFile(transferred, contentHash(done, size));
+    }
+
+    /**
+     * Returns the version of a remote file written in the journal: a
+     * partial download is resumed only for the same ref, size and
+     * lastModified
+     *
+     * @param ref
+     *            the file ref, or its data link
+     * @param size
+     *            the file size in bytes
+     * @param lastModified
+     *            the lastModified of the file, or null if unknown
+     * @return the version
+     */
+    static String versionOf(String ref, long size, String lastModified) {
+        return ref + " " + size + " " + lastModified;
+    }
+
+    /**
+     * Fetches the missing segments over several connections. Each connection
+     * takes the next missing segment until none are left.
+     *
+     * @return the number of bytes transferred
+     */
+    private long fetchSegments(final String link, final FileChannel out, final Journal journal, List<long[]> missing,
+            final long size) throws IOException {
+        final ConcurrentLinkedQueue<long[]> queue = new ConcurrentLinkedQueue<long[]>(missing);
+        int connections = Math.min(segments, missing.size());
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        long transferred = 0;
+                        long[] range;
+                        while ((range = queue.poll()) != null) {
+                            Segment written = fetchRange(link, out, range[0], range[1], size);
+                            transferred += written.end - written.start;
+                            journal.record(written);
+                        }
+                        return transferred;
+                    }
+                }));
+            }
+
+            long transferred = 0;
+            for (Future<Long> future : futures) {
+                transferred += future.get();
+            }
+            return transferred;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + link, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            // let the other connections finish and journal their current segment
+            queue.clear();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the server answers range requests for the link with
+     * partial content
+     */
+    private boolean supportsRanges(String link) throws IOException {
+        HttpURLConnection connection = ApiClient.execute(link, accessToken, "GET", true, range(0, 1));
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            ApiClient.release(connection);
+            return true;
+        }
+        // do not read a whole file just to reuse the connection
+        connection.disconnect();
+        return false;
+    }
+
+    /**
+     * Requests the bytes [start, end) and writes them at the same offset in
+     * the output file. If the server ignores the Range header the whole file
+     * is written instead.
+     *
+     * @return the range actually written, with the digests of its blocks
+     */
+    private Segment fetchRange(String link, FileChannel out, long start, long end, long size) throws IOException {
+        HttpURLConnection connection = ApiClient.execute(link, accessToken, "GET", true, range(start, end));
+        int status = connection.getResponseCode();
+        if (status > 299) {
+            ApiClient.release(connection);
+            throw new IOException("HTTP " + status + " while downloading range " + start + "-" + (end - 1));
+        }
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            // the server ignored the range and sends the whole file
+            start = 0;
+            end = size;
+        } else {
+            String expected = "bytes " + start + "-" + (end - 1) + "/" + size;
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (!expected.equals(contentRange == null ? null : contentRange.trim())) {
+                ApiClient.release(connection);
+                throw new IOException("Content-Range " + contentRange + " does not match the requested " + expected);
+            }
+        }
+
+        InputStream in = connection.getInputStream();
+        try {
+            ContentHash.BlockHasher hasher = new ContentHash.BlockHasher();
+            StreamCopier.copy(in, out, start, end - start, hasher);
+            // the range must be on disk before the journal says so
+            out.force(false);
+            return new Segment(start, end, hasher.finish());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a writer of the Range header for the bytes [start, end)
+     */
+    private static ApiClient.RequestWriter range(final long start, final long end) {
+        return new ApiClient.RequestWriter() {
+            public void write(HttpURLConnection connection) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            }
+        };
+    }
+
+    /**
+     * Reads the version recorded on the first line of the journal
+     *
+     * @return the version, or null if the journal has none
+     */
+    private static String readVersion(File journalFile) throws IOException {
+        if (!journalFile.exists()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            String line = reader.readLine();
+            return line != null && line.startsWith(VERSION_PREFIX) ? line.substring(VERSION_PREFIX.length()) : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the completed segments from the journal, ignoring a torn last
+     * line
+     */
+    private static List<Segment> readJournal(File journalFile) throws IOException {
+        List<Segment> ranges = new ArrayList<Segment>();
+        if (!journalFile.exists()) {
+            return ranges;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(VERSION_PREFIX)) {
+                    continue;
+                }
+                int dash = line.indexOf('-');
+                int space = line.indexOf(' ');
+                if (dash <= 0 || space == -1) {
+                    // incomplete line written before a crash
+                    continue;
+                }
+                try {
+                    long start = Long.parseLong(line.substring(0, dash));
+                    long end = Long.parseLong(line.substring(dash + 1, space));
+                    List<String> blockHashes = Arrays.asList(line.substring(space + 1).split(","));
+                    if (blockHashes.size() == blockCount(start, end)) {
+                        ranges.add(new Segment(start, end, blockHashes));
+                    }
+                } catch (NumberFormatException e) {
+                    // incomplete line written before a crash
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return ranges;
+    }
+
+    /**
+     * Returns the ranges of [0, size) not covered by the completed ranges,
+     * split into segments of at most segmentSize bytes
+     */
+    static List<long[]> missingRanges(List<Segment> done, long size, long segmentSize) {
+        List<long[]> missing = new ArrayList<long[]>();
+        long position = 0;
+        for (Segment range : sorted(done)) {
+            if (range.start > position) {
+                addSegments(missing, position, Math.min(range.start, size), segmentSize);
+            }
+            position = Math.max(position, range.end);
+        }
+        addSegments(missing, position, size, segmentSize);
+        return missing;
+    }
+
+    /**
+     * Combines the block digests of segments covering the whole file
+     *
+     * @return the content hash, or null if the segments do not line up
+     */
+    private static String contentHash(List<Segment> done, long size) {
+        List<String> blockHashes = new ArrayList<String>();
+        long position = 0;
+        for (Segment segment : sorted(done)) {
+            if (segment.start == position) {
+                blockHashes.addAll(segment.blockHashes);
+                position = segment.end;
+            }
+        }
+        // overlapping segments of a run with another segment size
+        return position == size ? ContentHash.combine(blockHashes) : null;
+    }
+
+    /**
+     * Sorts segments by start, the longest first for the same start
+     */
+    private static List<Segment> sorted(List<Segment> segments) {
+        List<Segment> sorted = new ArrayList<Segment>(segments);
+        Collections.sort(sorted, new Comparator<Segment>() {
+            public int compare(Segment a, Segment b) {
+                return a.start != b.start ? Long.compare(a.start, b.start) : Long.compare(b.end, a.end);
+            }
+        });
+        return sorted;
+    }
+
+    private static long blockCount(long start, long end) {
+        return (end - start + ContentHash.BLOCK_SIZE - 1) / ContentHash.BLOCK_SIZE;
+    }
+
+    private static void addSegments(List<long[]> ranges, long start, long end, long segmentSize) {
+        for (long position = start; position < end; position += segmentSize) {
+            ranges.add(new long[] { position, Math.min(end, position + segmentSize) });
+        }
+    }
+
+    /**
+     * The journal sidecar, shared by the connections of a download. A new
+     * journal starts with the version of the remote file. A range is
+     * recorded only after all its bytes were written.
+     */
+    private static class Journal {
+        private final Writer writer;
+
+        private Journal(File journalFile, String version) throws IOException {
+            boolean empty = journalFile.length() == 0;
+            this.writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), UTF8);
+            if (empty) {
+                writer.write(VERSION_PREFIX + version + "\n");
+                writer.flush();
+            }
+        }
+
+        private synchronized void record(Segment segment) throws IOException {
+            StringBuilder line = new StringBuilder();
+            line.append(segment.start).append('-').append(segment.end).append(' ');
+            for (int i = 0; i < segment.blockHashes.size(); i++) {
+                line.append(i == 0 ? "" : ",").append(segment.blockHashes.get(i));
+            }
+            writer.write(line.append('\n').toString());
+            writer.flush();
+        }
+
+        private synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * A downloaded range of the file and the digests of its blocks
+     */
+    static class Segment {
+        final long start;
+        final long end;
+        final List<String> blockHashes;
+
+        Segment(long start, long end, List<String> blockHashes) {
+            this.start = start;
+            this.end = end;
+            this.blockHashes = blockHashes;
+        }
+    }
+
+    /**
+     * The outcome of a completed download
+     */
+    static class DownloadedFile {
+        final long transferred;
+        final String contentHash;
+
+        DownloadedFile(long transferred, String contentHash) {
+            this.transferred = transferred;
+            this.contentHash = contentHash;
+        }
+    }
+}
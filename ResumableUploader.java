@@ -0,0 +1,198 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * @file ResumableUploader.java
+ *
+ *       Uploads a local file into a SugarSync folder.
+ *
+ *       1. Creates the file representation in the remote folder, unless the
+ *       "<file>.upload" checkpoint of a previous interrupted run already holds
+ *       one for the same local file
+ *
+ *       2. Streams the file data with a single PUT, copying the local file
+ *       channel through a small direct buffer, so memory use does not depend
+ *       on the file size
+ *
+ *       The SugarSync file data resource only accepts the whole body in one
+ *       PUT, so an interrupted transfer resumes from the file creation step
+ *       and sends the data again.
+ *
+ *       The content hash of the file is computed while it is sent and, when
+ *       a hash index is given, recorded for the local file.
+ */
+class ResumableUploader {
+
+    static final String CHECKPOINT_SUFFIX = ".upload";
+
+    private final String accessToken;
+    private final HashIndex hashIndex;
+
+    /**
+     * @param accessToken
+     *            the access token
+     */
+    ResumableUploader(String accessToken) {
+        this(accessToken, null);
+    }
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param hashIndex
+     *            records the content hash of the uploaded files, or null
+     */
+    ResumableUploader(String accessToken, HashIndex hashIndex) {
+        this.accessToken = accessToken;
+        this.hashIndex = hashIndex;
+    }
+
+    /**
+     * Uploads the local file into the remote folder, using the local file
+     * name as remote name
+     *
+     * @param folderLink
+     *            the link of the destination folder
+     * @param fileName
+     *            the local file name
+     * @return the link of the created remote file
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects a request
+     */
+    String upload(String folderLink, String fileName) throws IOException {
+        return upload(folderLink, new File(fileName).getName(), fileName);
+    }
+
+    /**
+     * Uploads the local file into the remote folder
+     *
+     * @param folderLink
+     *            the link of the destination folder
+     * @param displayName
+     *            the remote file name
+     * @param fileName
+     *            the local file name
+     * @return the link of the created remote file
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects a request
+     */
+    String upload(String folderLink, String displayName, String fileName) throws IOException {
+        File file = new File(fileName);
+        File checkpointFile = new File(fileName + CHECKPOINT_SUFFIX);
+        Properties checkpoint = readCheckpoint(checkpointFile);
+
+        String fileRef = null;
+        if (String.valueOf(file.length()).equals(checkpoint.getProperty("size"))
+                && String.valueOf(file.lastModified()).equals(checkpoint.getProperty("lastModified"))
+                && folderLink.equals(checkpoint.getProperty("folder"))) {
+            fileRef = checkpoint.getProperty("fileRef");
+        }
+
+        if (fileRef == null) {
+            fileRef = ApiClient.create(folderLink, accessToken, ApiClient.fileXml(displayName));
+
+            checkpoint.setProperty("size", String.valueOf(file.length()));
+            checkpoint.setProperty("lastModified", String.valueOf(file.lastModified()));
+            checkpoint.setProperty("folder", folderLink);
+            checkpoint.setProperty("fileRef", fileRef);
+            writeCheckpoint(checkpointFile, checkpoint);
+        } else {
+            System.out.println("Resuming upload of " + fileName + " into " + fileRef);
+        }
+
+        uploadData(fileRef, file);
+        checkpointFile.delete();
+        return fileRef;
+    }
+
+    /**
+     * Replaces the data of an existing remote file by streaming the local
+     * file with a fixed length PUT request
+     *
+     * @param fileRef
+     *            the link of the remote file
+     * @param file
+     *            the local file
+     * @return the content hash of the sent data
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects the request
+     */
+    String uploadData(String fileRef, final File file) throws IOException {
+        String fileDataLink = fileRef + "/data";
+        // the hash of the last attempt, the one the server kept
+        final String[] contentHash = new String[1];
+        long start = System.nanoTime();
+        // replacing the whole data is idempotent, so failed attempts are sent again
+        HttpURLConnection connection = ApiClient.execute(fileDataLink, accessToken, "PUT", true,
+                new ApiClient.RequestWriter() {
+                    public void write(HttpURLConnection connection) throws IOException {
+                        connection.setDoOutput(true);
+                        connection.setFixedLengthStreamingMode(file.length());
+                        contentHash[0] = sendData(connection, file);
+                    }
+                });
+        int status = connection.getResponseCode();
+        ApiClient.release(connection);
+        if (status > 299) {
+            throw new IOException("HTTP " + status + " while uploading " + file.getName());
+        }
+        Telemetry.recordTransfer("upload", file.length(), System.nanoTime() - start);
+        if (hashIndex != null) {
+            hashIndex.putLocal(file, contentHash[0]);
+        }
+        return contentHash[0];
+    }
+
+    /**
+     * Writes the local file as the request body
+     *
+     * @return the content hash of the written data
+     */
+    private String sendData(HttpURLConnection connection, File file) throws IOException {
+        ContentHash.BlockHasher hasher = new ContentHash.BlockHasher();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            OutputStream out = connection.getOutputStream();
+            try {
+                StreamCopier.copy(channel, 0, channel.size(), out, hasher);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return ContentHash.combine(hasher.finish());
+    }
+
+    private static Properties readCheckpoint(File checkpointFile) throws IOException {
+        Properties checkpoint = new Properties();
+        if (checkpointFile.exists()) {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return checkpoint;
+    }
+
+    private static void writeCheckpoint(File checkpointFile, Properties checkpoint) throws IOException {
+        OutputStream out = new FileOutputStream(checkpointFile);
+        try {
+            checkpoint.store(out, "SampleTool upload checkpoint");
+        } finally {
+            out.close();
+        }
+    }
+}
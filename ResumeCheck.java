@@ -0,0 +1,162 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @file ResumeCheck.java
+ *
+ *       Checks the resume of interrupted downloads against a
+ *       MockSugarSyncServer serving byte ranges, without an account or a
+ *       network:
+ *
+ *       - a download cut in the middle of a segment is resumed, only the
+ *       missing segments are requested and the file and its content hash are
+ *       those of the remote file
+ *
+ *       - a partial download of a remote file replaced since, at the same
+ *       size, is started over instead of mixing the old and the new bytes
+ *
+ *       Prints one line per check and exits with 1 if any fails.
+ *
+ *       java -cp sample-tool.jar com.sugarsync.sample.tool.ResumeCheck
+ */
+class ResumeCheck {
+
+    private static final long SEGMENT_SIZE = ContentHash.BLOCK_SIZE;
+    private static final long FILE_SIZE = 6 * SEGMENT_SIZE;
+    // segments downloaded before the transfer is cut, in the middle of the
+    // next one
+    private static final int SEGMENTS_BEFORE_CUT = 2;
+    private static final long CUT_AFTER = SEGMENT_SIZE / 2 + 12345;
+    private static final String TOKEN = "check";
+
+    private final MockSugarSyncServer server;
+    private final File workDir;
+
+    private ResumeCheck(MockSugarSyncServer server, File workDir) {
+        this.server = server;
+        this.workDir = workDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // the mock server is not rate limited and a cut request must not be
+        // retried
+        ApiClient.setRequestScheduler(new RequestScheduler(100000, 0));
+        MockSugarSyncServer server = new MockSugarSyncServer(1, 0, 1, FILE_SIZE, 0, 0);
+        server.start();
+        File workDir = Files.createTempDirectory("sugarsync-resume").toFile();
+        List<String> failures = new ArrayList<String>();
+        try {
+            ResumeCheck check = new ResumeCheck(server, workDir);
+            check.run("resume after a cut transfer", failures, new File(workDir, "resumed.mov"), false);
+            check.run("start over after a remote change", failures, new File(workDir, "changed.mov"), true);
+        } finally {
+            server.stop();
+            for (File file : workDir.listFiles()) {
+                file.delete();
+            }
+            workDir.delete();
+        }
+        System.out.println(failures.isEmpty() ? "All resume checks passed" : failures.size() + " failed: "
+                + failures);
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Cuts a download, optionally replaces the remote file, resumes the
+     * download and checks the result
+     */
+    private void run(String name, List<String> failures, File target, boolean changeRemote) {
+        try {
+            String error = check(target, changeRemote);
+            System.out.println((error == null ? "OK " : "FAILED ") + name + (error == null ? "" : ": " + error));
+            if (error != null) {
+                failures.add(name);
+            }
+        } catch (Exception e) {
+            System.out.println("FAILED " + name + ": " + e);
+            failures.add(name);
+        }
+    }
+
+    /**
+     * @return the first difference found, or null if the download is right
+     */
+    private String check(File target, boolean changeRemote) throws IOException {
+        File part = new File(target.getPath() + ResumableDownloader.PART_SUFFIX);
+        File journal = new File(part.getPath() + ResumableDownloader.JOURNAL_SUFFIX);
+
+        // one connection, so the segments before the cut one are complete
+        server.cutTransfer(SEGMENTS_BEFORE_CUT, CUT_AFTER);
+        try {
+            new ResumableDownloader(TOKEN, SEGMENT_SIZE, 1).download(listFile(), target.getPath());
+            return "the cut download did not fail";
+        } catch (IOException e) {
+            // expected
+        }
+        if (!part.isFile() || !journal.isFile() || target.exists()) {
+            return "the cut download did not leave its part file and journal";
+        }
+
+        if (changeRemote) {
+            server.changeFiles();
+        }
+        // several connections on the resume
+        ResumableDownloader.DownloadedFile resumed = new ResumableDownloader(TOKEN, SEGMENT_SIZE, 2).download(
+                listFile(), target.getPath());
+
+        long expected = changeRemote ? FILE_SIZE : FILE_SIZE - SEGMENTS_BEFORE_CUT * SEGMENT_SIZE;
+        if (resumed.transferred != expected) {
+            return "transferred " + resumed.transferred + " bytes on resume, expected " + expected;
+        }
+        if (part.exists() || journal.exists()) {
+            return "the part file or the journal is left";
+        }
+        String difference = compare(target);
+        if (difference != null) {
+            return difference;
+        }
+        String contentHash = ContentHash.hashFile(target);
+        if (!contentHash.equals(resumed.contentHash)) {
+            return "content hash " + resumed.contentHash + ", the file has " + contentHash;
+        }
+        return null;
+    }
+
+    /**
+     * Lists the file, with the lastModified currently served
+     */
+    private RemoteEntry listFile() throws IOException {
+        String xml = ApiClient.get(server.folderLink(MockSugarSyncServer.ROOT_ID) + "/contents?type=file", TOKEN)
+                .getResponseBody();
+        return RemoteEntry.fromFields(false, StaxXml.readRecords(xml, "file").get(0));
+    }
+
+    /**
+     * @return the first byte of the file which differs from the remote file,
+     *         or null if they are the same
+     */
+    private String compare(File file) throws IOException {
+        if (file.length() != FILE_SIZE) {
+            return "size " + file.length() + ", expected " + FILE_SIZE;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+        try {
+            for (long position = 0; position < FILE_SIZE; position++) {
+                if ((byte) in.read() != server.fileByte(position)) {
+                    return "byte " + position + " differs from the remote file";
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return null;
+    }
+}
@@ -3,21 +3,18 @@ package com.sugarsync.sample.tool;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
-import javax.net.ssl.SSLException;
 import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathExpressionException;
 
-import com.sugarsync.sample.auth.AccessToken;
-import com.sugarsync.sample.auth.RefreshToken;
-import com.sugarsync.sample.file.FileCreation;
-import com.sugarsync.sample.file.FileDownloadAPI;
-import com.sugarsync.sample.file.FileUploadAPI;
-import com.sugarsync.sample.userinfo.UserInfo;
 import com.sugarsync.sample.util.HttpResponse;
-import com.sugarsync.sample.util.SugarSyncHTTPGetUtil;
 import com.sugarsync.sample.util.XmlUtil;
 
 /**
@@ -49,12 +46,67 @@ public class SampleTool {
     private static final String applicationIdParam = "-application";
     private static final String accesskeyParam = "-accesskey";
     private static final String privateaccesskeyParam = "-privatekey";
+
+    // optional tool parameters
+    private static final String parallelParam = "-parallel";
+    private static final String maxInFlightParam = "-maxinflight";
+    private static final String segmentsParam = "-segments";
+    private static final String segmentSizeParam = "-segmentsize";
+    private static final String crawlersParam = "-crawlers";
+    private static final String pageSizeParam = "-pagesize";
+    private static final String connectionsParam = "-connections";
+    private static final String timeoutParam = "-timeout";
+    private static final String tokenCacheParam = "-tokencache";
+    private static final String metadataTtlParam = "-metadatattl";
+    private static final String metadataCacheParam = "-metadatacache";
+    private static final String rateLimitParam = "-ratelimit";
+    private static final String retriesParam = "-retries";
+    private static final String portParam = "-port";
+    private static final String jobsParam = "-jobs";
+    private static final String hashIndexParam = "-hashindex";
+    private static final String filterParam = "-filter";
+    private static final String metricsParam = "-metrics";
+    private static final String bandwidthParam = "-bwlimit";
+    private static final String bandwidthScheduleParam = "-bwschedule";
+    private static final String contentCacheParam = "-contentcache";
+    private static final String contentCacheSizeParam = "-contentcachesize";
+    private static final String shareParam = "-share";
+    private static final String remoteIndexParam = "-remoteindex";
+    private static final String pollIntervalParam = "-pollinterval";
+    private static final String postProcessParam = "-postprocess";
+    private static final String postWorkersParam = "-postworkers";
+    private static final String postQueueParam = "-postqueue";
+    private static final String formatParam = "-format";
+    private static final List<String> optionalParams = Arrays.asList(parallelParam, maxInFlightParam, segmentsParam,
+            segmentSizeParam, crawlersParam, pageSizeParam, connectionsParam, timeoutParam,
+            tokenCacheParam, metadataTtlParam, metadataCacheParam, rateLimitParam, retriesParam, portParam, jobsParam,
+            hashIndexParam, filterParam, metricsParam, bandwidthParam, bandwidthScheduleParam,
+            contentCacheParam, contentCacheSizeParam, shareParam, remoteIndexParam, pollIntervalParam,
+            postProcessParam, postWorkersParam, postQueueParam, formatParam);
+
+    // optional tool flags (parameters without a value)
+    private static final String statsFlag = "-stats";
+    private static final String recursiveFlag = "-recursive";
+    private static final String cacheLinksFlag = "-cachelinks";
+    private static final List<String> optionalFlags = Arrays.asList(statsFlag, recursiveFlag, cacheLinksFlag);
+
+    // used for the megabyte based optional parameters
+    private static final long ONE_MB = 1024 * 1024;
     
 
     private static final String quotaCmd = "quota";
     private static final String listCmd = "list";
     private static final String uploadCmd = "upload";
     private static final String downloadCmd = "download";
+    private static final String syncCmd = "sync";
+    private static final String daemonCmd = "daemon";
+    private static final String batchCmd = "batch";
+    private static final String changesCmd = "changes";
+    private static final String findCmd = "find";
+    private static final String duCmd = "du";
+    private static final String statCmd = "stat";
+    // answered from the local snapshots, without authorization
+    private static final List<String> localCmds = Arrays.asList(findCmd, duCmd, statCmd);
 
     
     /**
@@ -76,6 +128,91 @@ public class SampleTool {
         return argumentList.get(indexOfParam + 1);
     }
 
+    /**
+     * Returns the value of an optional parameter or the default value if the
+     * parameter was not specified
+     * 
+     * @param param
+     *            the optional parameter for which the value is requested
+     * @param argumentList
+     *            the arguments passed to main method
+     * @param defaultValue
+     *            the value returned when the parameter is missing
+     * @return the value of the input parameter
+     */
+    private static String getOptionalParam(String param, List<String> argumentList, String defaultValue) {
+        int indexOfParam = argumentList.indexOf(param);
+        if (indexOfParam == -1) {
+            return defaultValue;
+        }
+        return argumentList.get(indexOfParam + 1);
+    }
+
+    /**
+     * Reads the optional transfer parameters and flags
+     * 
+     * @param argumentList
+     *            the arguments passed to main method
+     * @return the transfer options, with default values for the missing
+     *         parameters
+     */
+    private static TransferOptions getTransferOptions(List<String> argumentList) {
+        TransferOptions options = new TransferOptions();
+        options.parallelism = Integer.parseInt(getOptionalParam(parallelParam, argumentList,
+                String.valueOf(options.parallelism)));
+        options.maxInFlightBytes = Long.parseLong(getOptionalParam(maxInFlightParam, argumentList,
+                String.valueOf(options.maxInFlightBytes / ONE_MB))) * ONE_MB;
+        options.segments = Integer.parseInt(getOptionalParam(segmentsParam, argumentList,
+                String.valueOf(options.segments)));
+        options.segmentSize = Long.parseLong(getOptionalParam(segmentSizeParam, argumentList,
+                String.valueOf(options.segmentSize / ONE_MB))) * ONE_MB;
+        options.crawlParallelism = Integer.parseInt(getOptionalParam(crawlersParam, argumentList,
+                String.valueOf(options.crawlParallelism)));
+        options.pageSize = Integer.parseInt(getOptionalParam(pageSizeParam, argumentList,
+                String.valueOf(options.pageSize)));
+        options.maxConnections = Integer.parseInt(getOptionalParam(connectionsParam, argumentList,
+                String.valueOf(options.maxConnections)));
+        options.timeoutSeconds = Integer.parseInt(getOptionalParam(timeoutParam, argumentList,
+                String.valueOf(options.timeoutSeconds)));
+        options.metadataTtlSeconds = Long.parseLong(getOptionalParam(metadataTtlParam, argumentList,
+                String.valueOf(options.metadataTtlSeconds)));
+        options.maxRequestRate = Double.parseDouble(getOptionalParam(rateLimitParam, argumentList,
+                String.valueOf(options.maxRequestRate)));
+        if (!(options.maxRequestRate > 0)) {
+            System.out.println("Parameter " + rateLimitParam + " must be greater than 0!!!");
+            printUsage();
+            System.exit(0);
+        }
+        options.maxRetries = Integer.parseInt(getOptionalParam(retriesParam, argumentList,
+                String.valueOf(options.maxRetries)));
+        options.daemonPort = Integer.parseInt(getOptionalParam(portParam, argumentList,
+                String.valueOf(options.daemonPort)));
+        options.daemonJobs = Integer.parseInt(getOptionalParam(jobsParam, argumentList,
+                String.valueOf(options.daemonJobs)));
+        options.hashIndexFile = getOptionalParam(hashIndexParam, argumentList, options.hashIndexFile);
+        options.filter = getOptionalParam(filterParam, argumentList, options.filter);
+        options.bandwidthLimit = BandwidthGovernor.parseRate(getOptionalParam(bandwidthParam, argumentList,
+                String.valueOf(options.bandwidthLimit)));
+        options.bandwidthSchedule = getOptionalParam(bandwidthScheduleParam, argumentList, null);
+        options.share = getOptionalParam(shareParam, argumentList, options.share);
+        options.remoteIndexFile = getOptionalParam(remoteIndexParam, argumentList, options.remoteIndexFile);
+        options.pollIntervalSeconds = Long.parseLong(getOptionalParam(pollIntervalParam, argumentList,
+                String.valueOf(options.pollIntervalSeconds)));
+        options.format = getOptionalParam(formatParam, argumentList, options.format);
+        options.postProcess = getOptionalParam(postProcessParam, argumentList, null);
+        options.postProcessWorkers = Integer.parseInt(getOptionalParam(postWorkersParam, argumentList,
+                String.valueOf(options.postProcessWorkers)));
+        options.postProcessQueue = Integer.parseInt(getOptionalParam(postQueueParam, argumentList,
+                String.valueOf(options.postProcessQueue)));
+        options.contentCacheDir = getOptionalParam(contentCacheParam, argumentList, null);
+        options.contentCacheBytes = Long.parseLong(getOptionalParam(contentCacheSizeParam, argumentList,
+                String.valueOf(options.contentCacheBytes / ONE_MB))) * ONE_MB;
+        options.contentCacheLinks = argumentList.contains(cacheLinksFlag);
+        options.stats = argumentList.contains(statsFlag);
+        options.recursive = argumentList.contains(recursiveFlag);
+        return options;
+    }
+
     /**
      * Returns the command for the tool
      * 
@@ -85,16 +222,32 @@ public class SampleTool {
      */
     private static String getCommand(List<String> argumentList) {
         String cmd = argumentList.get(argumentList.size() - 1);
-        if (Arrays.asList(quotaCmd).contains(cmd)) {
+        if (Arrays.asList(quotaCmd, daemonCmd).contains(cmd)) {
             return cmd;
-        } else
+        } else if (argumentList.size() > 2 && argumentList.get(argumentList.size() - 3).equals(syncCmd))
+            return syncCmd;
+        else
             return argumentList.get(argumentList.size() - 2);
     }
 
+    /**
+     * Returns the arguments of the command for the tool
+     * 
+     * @param argumentList
+     *            the arguments passed to main method
+     * @param command
+     *            the command which will be run by the tool
+     * @return the arguments following the command
+     */
+    private static List<String> getCommandArguments(List<String> argumentList, String command) {
+        int count = Arrays.asList(quotaCmd, daemonCmd).contains(command) ? 0 : (command.equals(syncCmd) ? 2 : 1);
+        return argumentList.subList(argumentList.size() - count, argumentList.size());
+    }
+
     // --- SugarSync API calls
     /**
-     * Returns a refresh token for the developer with the credentials specified
-     * in the method parameters and the application id
+     * Returns the token manager of the user, which reuses the tokens cached by
+     * a previous run and renews the access token while the tool runs
      * 
      * @param username
      *            SugarSync username (email address)
@@ -106,49 +259,16 @@ public class SampleTool {
      *            Developer accessKey
      * @param privateAccessKey
      *            Developer privateAccessKey
-     * @return refresh token
-     * @throws IOException
-     *             if any I/O error if thrown
+     * @param cacheFile
+     *            the token cache file
+     * @return the token manager, installed in the shared API client
      */
-    private static String getRefreshToken(String username, String password, String applicationId, String accessKey,
-            String privateAccessKey) throws IOException, SSLException {
-        HttpResponse httpResponse = null;
-        httpResponse = RefreshToken.getAuthorizationResponse(username, password,applicationId, accessKey, privateAccessKey);
-
-        if (httpResponse.getHttpStatusCode() > 299) {
-            System.out.println("Error while getting refresh token!");
-            printResponse(httpResponse);
-            System.exit(0);
-        } 
-
-        return httpResponse.getHeader("Location").getValue();
-    }
-    
-    /**
-     * Return an access token for the developer keys and a refresh token
-     * 
-     * @param accessKey
-     *            Developer accessKey
-     * @param privateAccessKey
-     *            Developer privateAccessKey
-     * @param refreshToken
-     *            Refresh token string returned ass a response from
-     *            app-authorization request
-     * @return the access token that will be used for all API requests
-     * @throws IOException
-     *             if any I/O error if thrown
-     */
-    private static String getAccessToken(String accessKey, String privateAccessKey, String refreshToken) throws IOException {
-        HttpResponse httpResponse = AccessToken.getAccessTokenResponse(accessKey, privateAccessKey,
-                refreshToken);
-
-        if (httpResponse.getHttpStatusCode() > 299) {
-            System.out.println("Error while getting access token!");
-            printResponse(httpResponse);
-            System.exit(0);
-        }
-
-        return httpResponse.getHeader("Location").getValue();
+    private static TokenManager getTokenManager(String username, String password, String applicationId,
+            String accessKey, String privateAccessKey, File cacheFile) {
+        TokenManager tokenManager = new TokenManager(cacheFile, username, password, applicationId, accessKey,
+                privateAccessKey);
+        ApiClient.setTokenManager(tokenManager);
+        return tokenManager;
     }
 
     /**
@@ -162,7 +282,7 @@ public class SampleTool {
      *             if any I/O error occurs
      */
     private static HttpResponse getUserInfo(String accessToken) throws IOException {
-        HttpResponse httpResponse = UserInfo.getUserInfo(accessToken);
+        HttpResponse httpResponse = ApiClient.getMetadata(ApiClient.USER_INFO_LINK, accessToken);
         validateHttpResponse(httpResponse);
         return httpResponse;
     }
@@ -191,7 +311,7 @@ public class SampleTool {
 
         String magicBriefcaseFolderContentsLink = XmlUtil.getNodeValues(
                 folderRepresentationResponse.getResponseBody(), "/folder/contents/text()").get(0);
-        HttpResponse folderContentsResponse = SugarSyncHTTPGetUtil.getRequest(
+        HttpResponse folderContentsResponse = ApiClient.get(
                 magicBriefcaseFolderContentsLink, accessToken);
         validateHttpResponse(folderContentsResponse);
 
@@ -225,7 +345,7 @@ public class SampleTool {
 
         // make a HTTP GET to the link extracted from user info
         System.out.println(magicBriefcaseFolderLink);
-        HttpResponse folderRepresentationResponse = SugarSyncHTTPGetUtil.getRequest(magicBriefcaseFolderLink,
+        HttpResponse folderRepresentationResponse = ApiClient.get(magicBriefcaseFolderLink,
                 accessToken);
         validateHttpResponse(folderRepresentationResponse);
 
@@ -242,25 +362,35 @@ public class SampleTool {
      * 
      * @param accessToken
      *            the access token
+     * @param options
+     *            the transfer options, "format" selects text or JSON output
      * @throws IOException
      *             if any I/O error occurs
      * @throws XPathExpressionException
      */
-    private static void handleQuotaCommand(String accessToken) throws IOException,
+    private static void handleQuotaCommand(String accessToken, TransferOptions options) throws IOException,
             XPathExpressionException {
-        HttpResponse httpResponse = getUserInfo(accessToken);
+        boolean structured = isStructured(options);
+        // the usage changes with every upload, so it is never read from the cache
+        HttpResponse httpResponse = ApiClient.get(ApiClient.USER_INFO_LINK, accessToken);
+        validateHttpResponse(httpResponse);
 
-        // read the <quota> node values
-        String limit = XmlUtil.getNodeValues(httpResponse.getResponseBody(), "/user/quota/limit/text()").get(
-                0);
-        String usage = XmlUtil.getNodeValues(httpResponse.getResponseBody(), "/user/quota/usage/text()").get(
-                0);
+        // read the <quota> node values in a single pass
+        UserRecord user = UserRecord.parse(httpResponse.getResponseBody());
+        double limit = user.quotaLimit;
+        double usage = user.quotaUsage;
+        if (structured) {
+            // a single record, one line in both formats
+            System.out.println(new RecordWriter.Record().field("limit", user.quotaLimit)
+                    .field("usage", user.quotaUsage).field("free", user.quotaLimit - user.quotaUsage).toJson());
+            return;
+        }
 
         DecimalFormat threeDForm = new DecimalFormat("#.###");
         // print quota info
-        String storageAvailableInGB = threeDForm.format(Double.valueOf(limit) / ONE_GB);
-        String storageUsageInGB = threeDForm.format(Double.valueOf(usage) / ONE_GB);
-        String freeStorageInGB = threeDForm.format(((Double.valueOf(limit) - Double.valueOf(usage)) / ONE_GB));
+        String storageAvailableInGB = threeDForm.format(limit / ONE_GB);
+        String storageUsageInGB = threeDForm.format(usage / ONE_GB);
+        String freeStorageInGB = threeDForm.format((limit - usage) / ONE_GB);
         System.out.println("\n---QUOTA INFO---");
         System.out.println("Total storage available: " + storageAvailableInGB + " GB");
         System.out.println("Storage usage: " + storageUsageInGB + " GB");
@@ -274,51 +404,145 @@ public class SampleTool {
      * 
      * @param accessToken
      *            the access token
+     * @param receivedSharedFolder
+     *            the name of the received share
      * @param foldername 
      * 			  name of the folder to list
+     * @param options
+     *            the transfer options, with "recursive" set the whole folder
+     *            tree is listed, "format" selects text or JSON output
      * @throws IOException
      * @throws XPathExpressionException
      * @throws TransformerException
+     * @throws InterruptedException
      */
-    private static void handleListCommand(String accessToken, String foldername) throws IOException,
-            XPathExpressionException, TransformerException {
-    	
-    	String receivedSharedFolder = "CapCityCreative";
+    private static void handleListCommand(String accessToken, String receivedSharedFolder, String foldername,
+            TransferOptions options) throws IOException, XPathExpressionException, TransformerException, InterruptedException {
     	
+        boolean structured = isStructured(options);
         HttpResponse sharedFolderContentsResponse = getSharedFolderContentsRepresentation(accessToken, receivedSharedFolder );
 
+        if (options.recursive && structured) {
+            // stream a record per file and folder as the crawler finds them
+            final RecordWriter out = new RecordWriter(options.format);
+            boolean complete = false;
+            try {
+                new FolderCrawler(accessToken, options.crawlParallelism, options.pageSize).crawl(
+                        getFolderLink(sharedFolderContentsResponse, foldername), new FolderCrawler.Listener() {
+                            public void onFile(String path, RemoteEntry file) {
+                                writeRecord(out, RecordWriter.entry(path, file));
+                            }
+
+                            public void onFolder(String path, RemoteEntry folder) {
+                                writeRecord(out, RecordWriter.entry(path, folder));
+                            }
+                        });
+                complete = true;
+            } finally {
+                out.close(complete);
+            }
+            return;
+        }
+
+        if (options.recursive) {
+            // print the files of the whole tree as the crawler finds them
+            new FolderCrawler(accessToken, options.crawlParallelism, options.pageSize).crawl(
+                    getFolderLink(sharedFolderContentsResponse, foldername), new FolderCrawler.Listener() {
+                        public void onFile(String path, RemoteEntry file) {
+                            System.out.println(path);
+                        }
+
+                        public void onFolder(String path, RemoteEntry folder) {
+                        }
+                    });
+            return;
+        }
+
     	//look for a folder within a folder...return the contents of the found folder.
-    	HttpResponse folderContentsResponse = getFolderContentsRepresentation(accessToken, sharedFolderContentsResponse, foldername);
+    	// (the structured output has a record for every sub folder too)
+    	CollectionContentsReader folderContents = getFolderContents(accessToken, sharedFolderContentsResponse, foldername,
+    	        options.pageSize, structured);
 
         
-        printFolderContents(folderContentsResponse.getResponseBody());
-        
+        if (structured) {
+            writeFolderContents(folderContents, new RecordWriter(options.format));
+        } else {
+            printFolderContents(folderContents);
+        }
     }
 
     /**
-     * Prints the files and folders from the xml response
+     * Writes a record per file and folder of the folder contents as they are
+     * read. On a read error the output is ended as it is and the error is
+     * thrown.
      * 
-     * @param responseBody
-     *            the xml server response
+     * @param folderContents
+     *            the folder contents
+     * @param out
+     *            the record output
+     * @throws IOException
+     *             if the folder contents cannot be read
      */
-    private static void printFolderContents(String responseBody) {
+    private static void writeFolderContents(CollectionContentsReader folderContents, RecordWriter out)
+            throws IOException {
+        boolean complete = false;
         try {
-        	//Maybe add this back in later...
-            //List<String> folderNames = XmlUtil.getNodeValues(responseBody,
-            //        "/collectionContents/collection[@type=\"folder\"]/displayName/text()");
-            List<String> fileNames = XmlUtil.getNodeValues(responseBody,
-                    "/collectionContents/file/displayName/text()");
-            
-            //for (String folder : folderNames) {
-            //    System.out.println("\t" + folder);
-            //}
-            
-            for (String file : fileNames) {
-                System.out.println(file);
+            RemoteEntry entry;
+            while ((entry = folderContents.next()) != null) {
+                out.write(RecordWriter.entry(entry.displayName, entry));
             }
-        } catch (XPathExpressionException e1) {
-            System.out.println("Error while printing the folder contents:");
-            System.out.println(responseBody);
+            complete = true;
+        } finally {
+            folderContents.close();
+            out.close(complete);
+        }
+    }
+
+    /**
+     * Writes a record from a crawler thread, which cannot throw the error
+     */
+    private static void writeRecord(RecordWriter out, RecordWriter.Record record) {
+        try {
+            out.write(record);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks the -format option
+     * 
+     * @param options
+     *            the transfer options
+     * @return true for a JSON format, false for text
+     */
+    private static boolean isStructured(TransferOptions options) {
+        if (!RecordWriter.FORMATS.contains(options.format)) {
+            System.out.println("Unknown format \"" + options.format + "\", expected " + RecordWriter.TEXT + ", "
+                    + RecordWriter.JSON + " or " + RecordWriter.NDJSON);
+            throw new ToolExitException(0);
+        }
+        return !RecordWriter.TEXT.equals(options.format);
+    }
+
+    /**
+     * Prints the files from the folder contents as they are read
+     * 
+     * @param folderContents
+     *            the folder contents
+     */
+    private static void printFolderContents(CollectionContentsReader folderContents) {
+        try {
+            RemoteEntry entry;
+            while ((entry = folderContents.next()) != null) {
+                if (!entry.collection) {
+                    System.out.println(entry.displayName);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error while printing the folder contents: " + e.getMessage());
+        } finally {
+            folderContents.close();
         }
     }
 
@@ -333,78 +557,100 @@ public class SampleTool {
      * 
      * 3. Creates a file representation in "Magic Briefcase" folder
      * 
-     * 4. Uploads the file data associated to the previously created file
-     * representation
+     * 4. Streams the file data associated to the previously created file
+     * representation. An interrupted upload reuses the file representation
+     * recorded in the local checkpoint.
      * 
      * @param accessToken
      *            the access token
      * @param file
      *            the local file that will be uploaded in "Magic Briefcase"
+     * @param options
+     *            the transfer options
      * @throws XPathExpressionException
      * @throws IOException
      */
-    private static void handleUploadCommand(String accessToken, String file)
+    private static void handleUploadCommand(String accessToken, String file, TransferOptions options)
             throws XPathExpressionException, IOException {
         if (!(new File(file).exists())) {
             System.out.println("\nFile " + file + "  doesn not exists in the current directory");
-            System.exit(0);
+            throw new ToolExitException(0);
         }
         HttpResponse userInfoResponse = getUserInfo(accessToken);
 
-        String magicBriefcaseFolderLink = XmlUtil.getNodeValues(userInfoResponse.getResponseBody(),
-                "/user/magicBriefcase/text()").get(0);
-
-        HttpResponse resp = FileCreation.createFile(magicBriefcaseFolderLink, file, "", accessToken);
+        String magicBriefcaseFolderLink = UserRecord.parse(userInfoResponse.getResponseBody()).magicBriefcase;
 
-        String fileDataUrl = resp.getHeader("Location").getValue() + "/data";
-        resp = FileUploadAPI.uploadFile(fileDataUrl, file, accessToken);
+        HashIndex hashIndex = HashIndex.open(new File(options.hashIndexFile));
+        new ResumableUploader(accessToken, hashIndex).upload(magicBriefcaseFolderLink, file);
+        hashIndex.save();
 
         System.out.println("\nUpload completed successfully. Check \"Magic Briefcase\" remote folder");
 
     }
 
     /**
-     * getFolderContentsRepresentation
+     * getFolderContents
      * 
-     * Description: Fetch the folder contents representation of a specific folder in Sugar Sync
+     * Description: Open the paged file contents of a specific folder in Sugar Sync
      * 
      * @param folderRepresentation
      *            folder representation provided from GET command
      * @param foldername
      *            the SugarSync folder name 
+     * @param pageSize
+     *            the maximum number of files requested at a time
+     * @param withFolders
+     *            true to read the sub folders along with the files
+     * @return a reader over the files, and sub folders if asked, of the folder
      * @throws XPathExpressionException
      * @throws IOException
      */
-    private static HttpResponse getFolderContentsRepresentation(String accessToken, HttpResponse folderRepresentation,String foldername)
-            throws XPathExpressionException, IOException {
+    private static CollectionContentsReader getFolderContents(String accessToken, HttpResponse folderRepresentation,
+            String foldername, int pageSize, boolean withFolders) throws XPathExpressionException, IOException {
+    	
+        HttpResponse folderRefResponse = ApiClient.getMetadata(getFolderLink(folderRepresentation, foldername),
+                accessToken);
+        validateHttpResponse(folderRefResponse); 
+        //System.out.println(folderRefResponse.getResponseBody());
+        
+        //get the content of the folder...
+        FolderRecord folder = FolderRecord.parse(folderRefResponse.getResponseBody());
+        String folderContentsLink = withFolders ? folder.contents : folder.files;
+        return new CollectionContentsReader(folderContentsLink, accessToken, pageSize);
+    }
+
+    /**
+     * getFolderLink
+     * 
+     * Description: Find the link of a folder representation within a collection
+     * 
+     * @param folderRepresentation
+     *            folder representation provided from GET command
+     * @param foldername
+     *            the SugarSync folder name 
+     * @return the folder representation link
+     * @throws IOException
+     */
+    private static String getFolderLink(HttpResponse folderRepresentation, String foldername)
+            throws IOException {
     	
     	//System.out.println(sharedFolderContentsResponse.getResponseBody());
 
         //search through the folders to find the one that matches the folder within the collection...
-        List<String> folderLink = XmlUtil.getNodeValues(folderRepresentation.getResponseBody(),
-                "collectionContents/collection[displayName=\"" + foldername + "\"]/ref/text()");
+        List<String> folderLink = new ArrayList<String>();
+        for (Map<String, String> collection : StaxXml.readRecords(folderRepresentation.getResponseBody(), "collection")) {
+            if (foldername.equals(collection.get("displayName"))) {
+                folderLink.add(collection.get("ref"));
+            }
+        }
         if (folderLink.size() == 0) {
             System.out.println("\nFolder " + foldername + " not found.");
-            System.exit(0);
+            throw new ToolExitException(0);
         } else if (folderLink.size() > 1) {
             System.out.println("\n" + folderLink.size() + " folders found with the name " + foldername + ".  Exiting.");
-            System.exit(0);
+            throw new ToolExitException(0);
         } 
-       
-        HttpResponse folderRefResponse = SugarSyncHTTPGetUtil.getRequest(folderLink.get(0),
-                accessToken);
-        validateHttpResponse(folderRefResponse); 
-        //System.out.println(folderRefResponse.getResponseBody());
-        
-        //get the content of the folder...
-        String folderContentsLink = XmlUtil.getNodeValues(folderRefResponse.getResponseBody(),
-        		"/folder/files/text()").get(0);
-        HttpResponse folderContentsResponse = SugarSyncHTTPGetUtil.getRequest(folderContentsLink,
-                accessToken);
-        validateHttpResponse(folderContentsResponse); 
-        //System.out.println(folderContentsResponse.getResponseBody());
-        
-        return folderContentsResponse;
+        return folderLink.get(0);
     }
     
     /**
@@ -423,27 +669,30 @@ public class SampleTool {
             throws XPathExpressionException, IOException {
     	
     	HttpResponse userInfoResponse = getUserInfo(accessToken);
-        String receivedSharesLink = XmlUtil.getNodeValues(userInfoResponse.getResponseBody(),
-                "/user/receivedShares/text()").get(0);
+        String receivedSharesLink = UserRecord.parse(userInfoResponse.getResponseBody()).receivedShares;
 
         // make a HTTP GET to the link extracted from user info
-        HttpResponse receivedSharesResponse = SugarSyncHTTPGetUtil.getRequest(receivedSharesLink,
+        HttpResponse receivedSharesResponse = ApiClient.getMetadata(receivedSharesLink,
                 accessToken);
         validateHttpResponse(receivedSharesResponse);
         
         // get the contents of a specific shared folder
-        String sharedFolderLink = XmlUtil.getNodeValues(receivedSharesResponse.getResponseBody(),
-        		"/receivedShares/receivedShare[displayName=\"" + receivedSharedFolder + "\"]/sharedFolder/text()").get(0);
-        HttpResponse sharedFolderResponse = SugarSyncHTTPGetUtil.getRequest(sharedFolderLink,
+        Map<String, String> receivedShare = StaxXml.findRecord(receivedSharesResponse.getResponseBody(),
+                "receivedShare", "displayName", receivedSharedFolder);
+        if (receivedShare == null) {
+            System.out.println("\nShared folder " + receivedSharedFolder + " not found.");
+            throw new ToolExitException(0);
+        }
+        String sharedFolderLink = receivedShare.get("sharedFolder");
+        HttpResponse sharedFolderResponse = ApiClient.getMetadata(sharedFolderLink,
                 accessToken);
         validateHttpResponse(sharedFolderResponse);
         
     	//get the collection (i.e. folders) within the shared folder
     	//System.out.println(sharedFolderResponse.getResponseBody());
-    	String sharedFolderContentsLink = XmlUtil.getNodeValues(sharedFolderResponse.getResponseBody(),
-    			"/folder/collections/text()").get(0);
+    	String sharedFolderContentsLink = FolderRecord.parse(sharedFolderResponse.getResponseBody()).collections;
     	//System.out.println(folderContentsLink);
-    	HttpResponse sharedFolderContentsResponse = SugarSyncHTTPGetUtil.getRequest(sharedFolderContentsLink,
+    	HttpResponse sharedFolderContentsResponse = ApiClient.getMetadata(sharedFolderContentsLink,
     			accessToken);
     	validateHttpResponse(sharedFolderContentsResponse);
         
@@ -458,60 +707,479 @@ public class SampleTool {
      * 
      * 1. Get the user information
      * 
-     * 2. Find the first received shared folder (assuming CapCityCreative)
+     * 2. Find the received shared folder (CapCityCreative unless -share is given)
      * 
      * 3. Find a folder within it.  [TODO]
      * 
-     * 4. Pull down all the files in the folder. [TODO]
+     * 4. Pull down the files of the folder selected by the filter, several at
+     * a time, except the ones already downloaded with the same content hash.
      * 
      * @param accessToken
      *            the access token
+     * @param receivedSharedFolder
+     *            the name of the received share
      * @param foldername
-     *            the SugarSync folder name in the received shared folder labeled CapCityCreative
+     *            the SugarSync folder name in the received shared folder
+     * @param directory
+     *            the local directory the files are written into, created if
+     *            missing, or null for the working directory
+     * @param options
+     *            the transfer options
      * @throws XPathExpressionException
      * @throws IOException
+     * @return the number of files downloaded, used as exit status
+     * @throws InterruptedException
      */
-    private static void handleDownloadCommand(String accessToken,String foldername)
-            throws XPathExpressionException, IOException {
+    private static int handleDownloadCommand(String accessToken, String receivedSharedFolder, String foldername,
+            File directory, TransferOptions options) throws XPathExpressionException, IOException,
+            InterruptedException {
+        String query = options.filter == null ? EntryFilter.DEFAULT_FILTER : options.filter;
+        EntryFilter filter;
+        List<PostProcessor.Step> postSteps;
+        try {
+            filter = EntryFilter.parse(query);
+            postSteps = options.postProcess == null ? new ArrayList<PostProcessor.Step>() : PostProcessor
+                    .parse(options.postProcess);
+        } catch (IllegalArgumentException e) {
+            System.out.println("\n" + e.getMessage());
+            throw new ToolExitException(0);
+        }
 
-    	String receivedSharedFolder = "CapCityCreative";
-    	
     	// look for the received shared folder...return the contents of the folder in xml
     	HttpResponse sharedFolderContentsResponse = getSharedFolderContentsRepresentation(accessToken, receivedSharedFolder);
         
     	//look for a folder within a folder...return the contents of the found folder.
-    	HttpResponse folderContentsResponse = getFolderContentsRepresentation(accessToken, sharedFolderContentsResponse, foldername);
+    	CollectionContentsReader folderContents = getFolderContents(accessToken, sharedFolderContentsResponse, foldername,
+    	        options.pageSize, false);
     	
     	
 
-      //fetch the location of the data and the names of the files for downloading purposes...
-        List<String> mediaFilesLink = XmlUtil.getNodeValues(folderContentsResponse.getResponseBody(),
-        		"/collectionContents/file[mediaType=\"video/quicktime\"]/fileData/text()");
-        List<String> fileNames = XmlUtil.getNodeValues(folderContentsResponse.getResponseBody(),
-        		"/collectionContents/file[mediaType=\"video/quicktime\"]/displayName/text()");
-        System.out.println("\n" + mediaFilesLink.size() + " files found for download.");
-        if (mediaFilesLink.size() == 0) {
-            System.out.println("\nFolder " + foldername + "/ does not contain any videos.");
-            System.exit(0);
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+
+      //queue the data location and the name of each selected file as the folder contents are read...
+        DownloadEngine engine = new DownloadEngine(accessToken, options);
+        final HashIndex hashIndex = HashIndex.open(new File(options.hashIndexFile));
+        final Map<String, RemoteEntry> queued = new HashMap<String, RemoteEntry>();
+        int mediaFiles = 0;
+        int unchanged = 0;
+        try {
+            RemoteEntry entry;
+            while ((entry = folderContents.next()) != null) {
+                if (filter.matches(entry)) {
+                    File local = new File(directory, entry.displayName);
+                    if (local.exists() && hashIndex.sameContent(local, entry)) {
+                        unchanged = unchanged + 1;
+                    } else {
+                        engine.add(entry, local.getPath());
+                        queued.put(local.getPath(), entry);
+                    }
+                    mediaFiles = mediaFiles + 1;
+                }
+            }
+        } finally {
+            folderContents.close();
+        }
+        System.out.println("\n" + mediaFiles + " files found for download, " + unchanged + " already up to date.");
+        if (mediaFiles == 0) {
+            System.out.println("\nFolder " + foldername + "/ does not contain any files matching \"" + query + "\".");
+            throw new ToolExitException(0);
         }
         
+        if (options.stats) {
+            HeapMonitor.reset();
+        }
+        // every downloaded file is recorded in the hash index before the
+        // -postprocess steps can change or move it
+        List<PostProcessor.Step> steps = new ArrayList<PostProcessor.Step>();
+        steps.add(new PostProcessor.Step() {
+            public File process(File file, DownloadEngine.DownloadResult download) {
+                if (download.contentHash != null) {
+                    hashIndex.putLocal(file, download.contentHash);
+                    hashIndex.putRemote(queued.get(download.fileName), download.contentHash);
+                }
+                return file;
+            }
+        });
+        steps.addAll(postSteps);
+        PostProcessor postProcessor = new PostProcessor(steps, options.postProcessWorkers,
+                options.postProcessQueue);
+        postProcessor.start();
+        engine.setPostProcessor(postProcessor);
+        long start = System.nanoTime();
+        List<DownloadEngine.DownloadResult> results;
+        List<PostProcessor.ProcessResult> processed;
+        try {
+            results = engine.run();
+        } finally {
+            processed = postProcessor.finish();
+        }
+        DownloadEngine.printReport(results, System.nanoTime() - start);
+        if (!postSteps.isEmpty()) {
+            PostProcessor.printReport(processed);
+        }
+        hashIndex.save();
+        if (options.stats) {
+            System.out.println("Peak heap: " + new DecimalFormat("#.###").format(HeapMonitor.peakHeapBytes()
+                    / (double) ONE_MB) + " MB");
+        }
         
-        int index = 0;
-        for (String link : mediaFilesLink) {
-        	System.out.println("Begin Download of " + fileNames.get(index));
-
-        	HttpResponse fileDownloadResponse = FileDownloadAPI.downloadFileData(link, fileNames.get(index),
-        			accessToken);
-        	validateHttpResponse(fileDownloadResponse);
-        	index = index + 1;
-        	System.out.println("Done.");
+        for (DownloadEngine.DownloadResult result : results) {
+            if (!result.isSuccessful()) {
+                System.out.println("\nDownload of " + result.fileName + " failed.");
+                throw new ToolExitException(0);
+            }
+        }
+        for (PostProcessor.ProcessResult result : processed) {
+            if (!result.isSuccessful()) {
+                System.out.println("\nProcessing of " + result.fileName + " failed.");
+                throw new ToolExitException(0);
+            }
         }
         System.out.println("\nDownload completed successfully. The contents of " + foldername
                 + "/ was downloaded to the local directory.");
-        System.exit(mediaFilesLink.size());
+        return mediaFiles;
     }    
     
     
+    /**
+     * handleSyncCommand
+     * 
+     * Description: Handles "sync" tool command.
+     * 
+     * 1. Find the folder within the received shared folder (CapCityCreative unless -share is given)
+     * 
+     * 2. Walk the folder tree and the local directory and transfer only the
+     * files which are new or changed since the previous sync, in both directions
+     * 
+     * @param accessToken
+     *            the access token
+     * @param receivedSharedFolder
+     *            the name of the received share
+     * @param foldername
+     *            the SugarSync folder name in the received shared folder
+     * @param localDir
+     *            the local directory
+     * @param options
+     *            the transfer options
+     * @throws XPathExpressionException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void handleSyncCommand(String accessToken, String receivedSharedFolder, String foldername,
+            String localDir, TransferOptions options) throws XPathExpressionException, IOException, InterruptedException {
+
+    	HttpResponse sharedFolderContentsResponse = getSharedFolderContentsRepresentation(accessToken, receivedSharedFolder);
+    	String folderLink = getFolderLink(sharedFolderContentsResponse, foldername);
+
+        boolean success = new SyncEngine(accessToken, options).sync(folderLink, new File(localDir));
+        if (!success) {
+            System.out.println("\nSync of " + foldername + "/ finished with errors.");
+            throw new ToolExitException(0);
+        }
+        System.out.println("\nSync completed successfully. " + foldername + "/ and " + localDir + " are in sync.");
+    }
+    
+    
+    /**
+     * handleChangesCommand
+     * 
+     * Description: Handles "changes" tool command.
+     * 
+     * 1. Find the folder within the received shared folder
+     * 
+     * 2. Poll its folder tree against the remote index, printing the files
+     * and folders added, modified or removed since the previous poll, once or
+     * every poll interval
+     * 
+     * 3. After every poll, write the snapshot of the tree used by the find,
+     * du and stat commands
+     * 
+     * @param accessToken
+     *            the access token
+     * @param receivedSharedFolder
+     *            the name of the received share
+     * @param foldername
+     *            the SugarSync folder name in the received shared folder
+     * @param options
+     *            the transfer options, with the remote index file and the
+     *            poll interval
+     * @throws XPathExpressionException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static void handleChangesCommand(String accessToken, String receivedSharedFolder, String foldername,
+            TransferOptions options) throws XPathExpressionException, IOException, InterruptedException {
+
+        HttpResponse sharedFolderContentsResponse = getSharedFolderContentsRepresentation(accessToken, receivedSharedFolder);
+        String folderLink = getFolderLink(sharedFolderContentsResponse, foldername);
+
+        RemoteIndex index = RemoteIndex.open(new File(options.remoteIndexFile));
+        ChangePoller poller = new ChangePoller(accessToken, index, options.crawlParallelism, options.pageSize);
+        poller.subscribe(new ChangePoller.Listener() {
+            public void onChange(ChangePoller.Change change) {
+                System.out.println(change.type + " " + change.path + (change.entry.collection ? "/" : ""));
+            }
+        });
+        while (true) {
+            try {
+                poller.poll(folderLink);
+                RemoteSnapshot.build(index, folderLink).write(RemoteSnapshot.fileFor(new File(
+                        options.remoteIndexFile), receivedSharedFolder, foldername));
+            } catch (IOException e) {
+                if (options.pollIntervalSeconds <= 0) {
+                    throw e;
+                }
+                System.out.println("Poll of " + foldername + "/ failed: " + e.getMessage());
+            } finally {
+                index.save();
+            }
+            if (options.stats) {
+                poller.printSummary();
+            }
+            if (options.pollIntervalSeconds <= 0) {
+                return;
+            }
+            Thread.sleep(options.pollIntervalSeconds * 1000);
+        }
+    }
+
+    /**
+     * Handles the "find", "du" and "stat" tool commands. They answer from the
+     * snapshot written by the last "changes" poll of the folder, without any
+     * request, for the files selected by the filter (all by default).
+     * 
+     * find - prints the path and size of the files
+     * 
+     * du - prints the total size and the number of files of every folder,
+     * sub folders included
+     * 
+     * stat - prints the totals, the largest and the latest file and the
+     * breakdown by media type
+     * 
+     * @param command
+     *            the command name
+     * @param receivedSharedFolder
+     *            the name of the received share
+     * @param foldername
+     *            the SugarSync folder name in the received shared folder
+     * @param options
+     *            the transfer options, with the remote index file and the
+     *            filter
+     * @throws IOException
+     *             if the snapshot cannot be read
+     */
+    private static void handleQueryCommand(String command, String receivedSharedFolder, String foldername,
+            TransferOptions options) throws IOException {
+        EntryFilter filter;
+        try {
+            filter = EntryFilter.parse(options.filter == null ? "" : options.filter);
+        } catch (IllegalArgumentException e) {
+            System.out.println("\n" + e.getMessage());
+            throw new ToolExitException(0);
+        }
+        RemoteSnapshot snapshot = RemoteSnapshot.read(RemoteSnapshot.fileFor(new File(options.remoteIndexFile),
+                receivedSharedFolder, foldername));
+        if (snapshot == null) {
+            System.out.println("\nNo snapshot of " + foldername + "/, run \"" + changesCmd + " " + foldername
+                    + "\" first.");
+            throw new ToolExitException(0);
+        }
+
+        DecimalFormat threeDForm = new DecimalFormat("#.###");
+        if (command.equals(findCmd)) {
+            for (int file = 0; file < snapshot.fileCount(); file++) {
+                if (snapshot.matches(file, filter)) {
+                    System.out.println(snapshot.path(file) + "\t" + snapshot.size(file));
+                }
+            }
+        } else if (command.equals(duCmd)) {
+            long[] bytes = new long[snapshot.folderCount()];
+            long[] counts = new long[snapshot.folderCount()];
+            snapshot.folderTotals(filter, bytes, counts);
+            for (int folder = 0; folder < snapshot.folderCount(); folder++) {
+                System.out.println(threeDForm.format(bytes[folder] / (double) ONE_MB) + " MB\t" + counts[folder]
+                        + " files\t" + foldername + "/" + snapshot.folderPath(folder));
+            }
+        } else {
+            printSnapshotStats(snapshot, filter, foldername);
+        }
+    }
+
+    /**
+     * Prints the totals of the files of a snapshot selected by the filter
+     */
+    private static void printSnapshotStats(RemoteSnapshot snapshot, EntryFilter filter, String foldername) {
+        Map<String, long[]> byType = new TreeMap<String, long[]>();
+        long files = 0;
+        long bytes = 0;
+        int largest = -1;
+        int latest = -1;
+        for (int file = 0; file < snapshot.fileCount(); file++) {
+            if (!snapshot.matches(file, filter)) {
+                continue;
+            }
+            files++;
+            bytes += snapshot.size(file);
+            if (largest == -1 || snapshot.size(file) > snapshot.size(largest)) {
+                largest = file;
+            }
+            if (latest == -1 || snapshot.modified(file) > snapshot.modified(latest)) {
+                latest = file;
+            }
+            String type = snapshot.mediaType(file) == null ? "unknown" : snapshot.mediaType(file);
+            long[] totals = byType.get(type);
+            if (totals == null) {
+                totals = new long[2];
+                byType.put(type, totals);
+            }
+            totals[0]++;
+            totals[1] += snapshot.size(file);
+        }
+
+        DecimalFormat threeDForm = new DecimalFormat("#.###");
+        System.out.println("\n---STATS OF " + foldername + "/--- (snapshot of " + new Date(snapshot.takenAt) + ")");
+        System.out.println("Folders: " + snapshot.folderCount());
+        System.out.println("Files: " + files);
+        System.out.println("Total size: " + threeDForm.format(bytes / (double) ONE_GB) + " GB");
+        if (largest != -1) {
+            System.out.println("Largest file: " + snapshot.path(largest) + " ("
+                    + threeDForm.format(snapshot.size(largest) / (double) ONE_MB) + " MB)");
+        }
+        if (latest != -1 && snapshot.modified(latest) != EntryFilter.UNKNOWN_TIME) {
+            System.out.println("Latest file: " + snapshot.path(latest) + " (" + new Date(snapshot.modified(latest))
+                    + ")");
+        }
+        for (Map.Entry<String, long[]> type : byType.entrySet()) {
+            System.out.println(type.getKey() + ": " + type.getValue()[0] + " files, "
+                    + threeDForm.format(type.getValue()[1] / (double) ONE_GB) + " GB");
+        }
+    }
+
+    /**
+     * Runs a tool command
+     * 
+     * @param command
+     *            the command name
+     * @param arguments
+     *            the command arguments
+     * @param accessToken
+     *            the access token
+     * @param share
+     *            the received share the list, download and sync commands
+     *            work in
+     * @param directory
+     *            the local directory the download command writes into, null
+     *            for the working directory
+     * @param options
+     *            the transfer options
+     * @return the exit status of the command
+     * @throws Exception
+     *             if the command fails
+     */
+    private static int runCommand(String command, List<String> arguments, String accessToken, String share,
+            File directory, TransferOptions options) throws Exception {
+        int expectedArguments = command.equals(quotaCmd) ? 0 : (command.equals(syncCmd) ? 2 : 1);
+        if (arguments.size() != expectedArguments) {
+            System.out.println("Command " + command + " expects " + expectedArguments + " argument(s)");
+            return 2;
+        }
+
+        if (command.equals(quotaCmd)) {
+            handleQuotaCommand(accessToken, options);
+        } else if (command.equals(listCmd)) {
+            handleListCommand(accessToken, share, arguments.get(0), options);
+        } else if (command.equals(downloadCmd)) {
+            return handleDownloadCommand(accessToken, share, arguments.get(0), directory, options);
+        } else if (command.equals(syncCmd)) {
+            handleSyncCommand(accessToken, share, arguments.get(0), arguments.get(1), options);
+        } else if (command.equals(uploadCmd)) {
+            handleUploadCommand(accessToken, arguments.get(0), options);
+        } else if (command.equals(changesCmd)) {
+            handleChangesCommand(accessToken, share, arguments.get(0), options);
+        } else if (localCmds.contains(command)) {
+            handleQueryCommand(command, share, arguments.get(0), options);
+        } else {
+            System.out.println("Uknown command: " + command);
+            printUsage();
+        }
+        return 0;
+    }
+
+    /**
+     * Handles "daemon" tool command. Stays resident and runs the commands
+     * submitted on a local port with the same access token, connection pool
+     * and metadata cache.
+     * 
+     * @param accessToken
+     *            the access token, renewed in the background
+     * @param tokenCache
+     *            the token cache file; the secret of the clients is kept next
+     *            to it
+     * @param options
+     *            the transfer options used by all the jobs
+     * @throws IOException
+     *             if the secret file or the port cannot be opened
+     */
+    private static void handleDaemonCommand(final String accessToken, File tokenCache, final TransferOptions options)
+            throws IOException {
+        File secretFile = new File(tokenCache.getPath() + DaemonServer.SECRET_SUFFIX);
+        new DaemonServer(options.daemonPort, options.daemonJobs, secretFile, new DaemonServer.CommandRunner() {
+            public int run(String command, List<String> arguments) throws Exception {
+                return runCommand(command, arguments, accessToken, options.share, null, options);
+            }
+        }).serve();
+    }
+
+    /**
+     * Handles "batch" tool command. Runs the jobs of a job file for several
+     * accounts and shares at the same time, authorizing every account once.
+     * 
+     * @param jobFile
+     *            the job file, see BatchRunner
+     * @param accessToken
+     *            the access token of the user of the command line
+     * @param tokenCache
+     *            the token cache file of the user of the command line; the
+     *            other accounts cache their tokens next to it
+     * @param applicationId
+     *            The developer application id
+     * @param accessKey
+     *            Developer accessKey
+     * @param privateAccessKey
+     *            Developer privateAccessKey
+     * @param options
+     *            the transfer options used by all the jobs
+     * @return the number of failed jobs, used as exit status
+     * @throws IOException
+     *             if the job file cannot be read
+     * @throws InterruptedException
+     */
+    private static int handleBatchCommand(String jobFile, String accessToken, final File tokenCache,
+            final String applicationId, final String accessKey, final String privateAccessKey,
+            final TransferOptions options) throws IOException, InterruptedException {
+        BatchRunner batch = new BatchRunner(options.daemonJobs, options.metadataTtlSeconds * 1000, accessToken,
+                new BatchRunner.AccountOpener() {
+                    public TokenManager open(String name, String username, String password) {
+                        return new TokenManager(new File(tokenCache.getPath() + "." + name), username, password,
+                                applicationId, accessKey, privateAccessKey);
+                    }
+                }, new BatchRunner.CommandRunner() {
+                    public int run(String token, String share, File directory, String command,
+                            List<String> arguments) throws Exception {
+                        return runCommand(command, arguments, token, share, directory, options);
+                    }
+                });
+        try {
+            batch.load(new File(jobFile), options.share);
+        } catch (IllegalArgumentException e) {
+            System.out.println("\n" + jobFile + ": " + e.getMessage());
+            throw new ToolExitException(0);
+        }
+        return batch.run();
+    }
+    
     // ---Print and validation
     /**
      * Validates the input arguments
@@ -520,7 +1188,19 @@ public class SampleTool {
      *            the arguments passed to main method
      */
     private static void validateArgs(List<String> args) {
-        if (args.size() != 11 && args.size() != 12) {
+        int optionalArgs = 0;
+        for (String param : optionalParams) {
+            if (args.contains(param)) {
+                optionalArgs += 2;
+            }
+        }
+        for (String flag : optionalFlags) {
+            if (args.contains(flag)) {
+                optionalArgs += 1;
+            }
+        }
+        int requiredArgs = args.size() - optionalArgs;
+        if (requiredArgs != 11 && requiredArgs != 12 && requiredArgs != 13) {
             printUsage();
             System.exit(0);
         }
@@ -528,7 +1208,7 @@ public class SampleTool {
 
     /**
      * Validates the HTTP response. If HTTP response status code indicates an
-     * error the details are printed and the tool exists
+     * error the details are printed and the command ends
      * 
      * @param httpResponse
      *            the HTTP response which will be validated
@@ -537,7 +1217,7 @@ public class SampleTool {
         if (httpResponse.getHttpStatusCode() > 299) {
             System.out.println("HTTP ERROR!");
             printResponse(httpResponse);
-            System.exit(0);
+            throw new ToolExitException(0);
         }
     }
 
@@ -567,8 +1247,23 @@ public class SampleTool {
         System.out.println("USAGE:");
         System.out.println("java -jar sample-tool.jar " + userParam + " <username> " + passParam
                 + " <password> " +applicationIdParam+" <appId> "+ accesskeyParam + " <publicAccessKey> " + privateaccesskeyParam
-                + " <privateAccessKey> " + " ( " + quotaCmd + " | " + listCmd + " | " + downloadCmd
-                + " <fileToDownload> | " + uploadCmd + " <fileToUpload> )");
+                + " <privateAccessKey> [" + parallelParam + " <n>] [" + maxInFlightParam + " <mb>] [" + segmentsParam
+                + " <s>] [" + segmentSizeParam + " <smb>] [" + crawlersParam
+                + " <c>] [" + pageSizeParam + " <p>] [" + connectionsParam + " <k>] [" + timeoutParam
+                + " <t>] [" + tokenCacheParam + " <tokenFile>] [" + metadataTtlParam + " <ttl>] ["
+                + metadataCacheParam + " <cacheFile>] [" + rateLimitParam + " <r>] [" + retriesParam + " <retries>] ["
+                + portParam + " <port>] [" + jobsParam + " <j>] [" + hashIndexParam + " <hashFile>] ["
+                + filterParam + " <filter>] [" + metricsParam + " <metricsFile>] ["
+                + bandwidthParam + " <rate>] [" + bandwidthScheduleParam + " <windows>] [" + contentCacheParam
+                + " <cacheDir>] [" + contentCacheSizeParam + " <cmb>] [" + shareParam + " <share>] ["
+                + remoteIndexParam + " <indexFile>] [" + pollIntervalParam + " <seconds>] ["
+                + postProcessParam + " <steps>] [" + postWorkersParam + " <w>] [" + postQueueParam + " <q>] ["
+                + formatParam + " <format>] ["
+                + cacheLinksFlag + "] ["
+                + statsFlag + "] [" + recursiveFlag + "] ( " + quotaCmd + " | " + listCmd + " | " + downloadCmd
+                + " <fileToDownload> | " + uploadCmd + " <fileToUpload> | " + syncCmd + " <remoteFolder> <localDir> | "
+                + changesCmd + " <remoteFolder> | " + findCmd + " <remoteFolder> | " + duCmd + " <remoteFolder> | "
+                + statCmd + " <remoteFolder> | " + daemonCmd + " | " + batchCmd + " <jobFile> )");
         System.out.println("\nWHERE:");
         System.out.println("<username> - SugarSync username (email address)");
         System.out.println("<password> - SugarSync password");
@@ -577,6 +1272,76 @@ public class SampleTool {
         System.out.println("<privateAccessKey> - Developer privateAccessKey");
         System.out.println("<fileToDownload> - The file from default \"Magic Briefcase\" folder that you want to download");
         System.out.println("<fileToUpload> - The file from current directory that you want to upload into default \"Magic Briefcase\" folder ");
+        System.out.println("<remoteFolder> - The folder of the received shared folder that you want to keep in sync or poll for changes");
+        System.out.println("<localDir> - The local directory that you want to keep in sync");
+        System.out.println("<jobFile> - The file of the accounts and the jobs run by the " + batchCmd + " command");
+        TransferOptions defaults = new TransferOptions();
+        System.out.println("<n> - The number of files downloaded at the same time (default " + defaults.parallelism + ")");
+        System.out.println("<mb> - The maximum number of megabytes downloaded at the same time (default "
+                + defaults.maxInFlightBytes / ONE_MB + ")");
+        System.out.println("<s> - The number of connections used to download a single large file (default "
+                + defaults.segments + ")");
+        System.out.println("<smb> - The size in megabytes of a byte range segment (default " + defaults.segmentSize
+                / ONE_MB + ")");
+        System.out.println("<c> - The number of concurrent requests used to walk a folder tree (default "
+                + defaults.crawlParallelism + ")");
+        System.out.println("<p> - The number of entries requested at a time from a folder listing (default "
+                + defaults.pageSize + ")");
+        System.out.println("<k> - The number of idle connections kept open to the server (default "
+                + defaults.maxConnections + ")");
+        System.out.println("<t> - The number of seconds to wait for a server response (default "
+                + defaults.timeoutSeconds + ")");
+        System.out.println("<tokenFile> - The file the tokens are cached in between runs (default ~/"
+                + TokenManager.DEFAULT_CACHE_NAME + ")");
+        System.out.println("<ttl> - The number of seconds user, share and folder information is reused without"
+                + " asking the server (default " + defaults.metadataTtlSeconds + ")");
+        System.out.println("<cacheFile> - The file user, share and folder information is kept in between runs"
+                + " (default none)");
+        System.out.println("<r> - The maximum number of requests per second, lowered while the server throttles"
+                + " (default " + defaults.maxRequestRate + ")");
+        System.out.println("<retries> - The number of times a throttled or failed request is sent again (default "
+                + defaults.maxRetries + ")");
+        System.out.println("<port> - The local port the " + daemonCmd + " command accepts jobs on (default "
+                + defaults.daemonPort + "); clients send the secret of <tokenFile>"
+                + DaemonServer.SECRET_SUFFIX + " on the first line");
+        System.out.println("<j> - The number of jobs the " + daemonCmd + " and " + batchCmd
+                + " commands run at the same time (default "
+                + defaults.daemonJobs + ")");
+        System.out.println("<hashFile> - The file the content hashes of the transferred files are kept in (default ~/"
+                + HashIndex.DEFAULT_INDEX_NAME + ")");
+        System.out.println("<filter> - The files the " + downloadCmd + ", " + findCmd + ", " + duCmd + " and "
+                + statCmd + " commands select, as space separated terms name:<glob>,... type:<mediaType>,..."
+                + " size:<min>..<max> modified:<from>..<to> (default \"" + EntryFilter.DEFAULT_FILTER + "\" for "
+                + downloadCmd + ", all files otherwise)");
+        System.out.println("<rate> - The maximum bandwidth of all the transfers together, in bytes per second with"
+                + " an optional k, m or g suffix (default 0, unlimited)");
+        System.out.println("<windows> - Daily windows with their own bandwidth, e.g. \"08:00-18:00=1m,18:00-23:00=10m\""
+                + " (default none)");
+        System.out.println("<cacheDir> - The directory downloaded files are cached in, shared by all the downloads"
+                + " on the machine (default none)");
+        System.out.println("<cmb> - The maximum size in megabytes of the cache directory (default "
+                + defaults.contentCacheBytes / ONE_MB + ")");
+        System.out.println("<share> - The received shared folder the " + listCmd + ", " + downloadCmd + ", "
+                + syncCmd + " and " + changesCmd + " commands work in (default " + TransferOptions.DEFAULT_SHARE + ")");
+        System.out.println("<indexFile> - The file the listings polled by the " + changesCmd
+                + " command are kept in (default ~/" + RemoteIndex.DEFAULT_INDEX_NAME + ")");
+        System.out.println("<seconds> - Poll for changes every <seconds> instead of once (default 0, once)");
+        System.out.println("<format> - The output of the " + quotaCmd + " and " + listCmd + " commands: "
+                + RecordWriter.TEXT + ", " + RecordWriter.JSON + " (one array) or " + RecordWriter.NDJSON
+                + " (one object per line), streamed as the entries are read (default " + defaults.format + ")");
+        System.out.println("<steps> - The steps each downloaded file goes through as soon as it is complete,"
+                + " separated by ;, e.g. \"run:transcode.sh {}; sha256; move:/data/done\" (default none)");
+        System.out.println("<w> - The number of downloaded files processed at the same time (default "
+                + defaults.postProcessWorkers + ")");
+        System.out.println("<q> - The number of downloaded files which may wait for processing before the"
+                + " downloads are held back (default " + defaults.postProcessQueue + ")");
+        System.out.println("<metricsFile> - Write the request latencies, transfer rates and queue waits to"
+                + " <metricsFile>.json and <metricsFile>.prom on exit (default none)");
+        System.out.println(statsFlag + " - Print the transfer throughput, the peak heap usage, the connection reuse"
+                + " and the request latencies");
+        System.out.println(recursiveFlag + " - List the files of the whole folder tree");
+        System.out.println(cacheLinksFlag + " - Hard link the files from the cache instead of copying them; they"
+                + " are then read only");
         
 
         System.out.println("\nEXAMPLES:");
@@ -614,31 +1379,84 @@ public class SampleTool {
         String applicationId = getParam(applicationIdParam, argumentList);
         String accessKey = getParam(accesskeyParam, argumentList);
         String privateAccessKey = getParam(privateaccesskeyParam, argumentList);
-        
+        TransferOptions options = getTransferOptions(argumentList);
+        ApiClient.configure(options.maxConnections, ApiClient.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                options.timeoutSeconds * 1000);
+        ApiClient.setRequestScheduler(new RequestScheduler(options.maxRequestRate, options.maxRetries));
+        final MetadataCache metadataCache = new MetadataCache(username, options.metadataTtlSeconds * 1000,
+                MetadataCache.DEFAULT_MAX_ENTRIES);
+        String metadataCacheName = getOptionalParam(metadataCacheParam, argumentList, null);
+        final File metadataCacheFile = metadataCacheName == null ? null : new File(metadataCacheName);
+        if (metadataCacheFile != null) {
+            metadataCache.load(metadataCacheFile);
+        }
+        ApiClient.setMetadataCache(metadataCache);
+        final String metricsName = getOptionalParam(metricsParam, argumentList, null);
+
+        final boolean stats = options.stats;
+        // the commands may end with System.exit
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (stats) {
+                    ApiClient.printMetrics();
+                    metadataCache.printMetrics();
+                    Telemetry.printMetrics();
+                    ContentCache.printOpenMetrics();
+                }
+                if (metricsName != null) {
+                    try {
+                        Telemetry.writeJson(new File(metricsName + ".json"));
+                        Telemetry.writePrometheus(new File(metricsName + ".prom"));
+                    } catch (IOException e) {
+                        System.out.println("Could not write the metrics: " + e.getMessage());
+                    }
+                }
+                if (metadataCacheFile != null) {
+                    try {
+                        metadataCache.save(metadataCacheFile);
+                    } catch (IOException e) {
+                        System.out.println("Could not save the metadata cache: " + e.getMessage());
+                    }
+                }
+            }
+        });
 
         try {
-            String refreshToken = getRefreshToken(username, password, applicationId, accessKey, privateAccessKey);
-            
-            String accessToken = getAccessToken(accessKey,privateAccessKey,refreshToken);
-            
+            if (options.bandwidthLimit != BandwidthGovernor.UNLIMITED || options.bandwidthSchedule != null) {
+                try {
+                    BandwidthGovernor.install(new BandwidthGovernor(options.bandwidthLimit,
+                            options.bandwidthSchedule));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    throw new ToolExitException(0);
+                }
+            }
+
             String command = getCommand(argumentList);
+            List<String> commandArguments = getCommandArguments(argumentList, command);
+            if (localCmds.contains(command)) {
+                System.exit(runCommand(command, commandArguments, null, options.share, null, options));
+            }
+
+            File tokenCache = new File(getOptionalParam(tokenCacheParam, argumentList,
+                    new File(System.getProperty("user.home"), TokenManager.DEFAULT_CACHE_NAME).getPath()));
+            TokenManager tokenManager = getTokenManager(username, password, applicationId, accessKey,
+                    privateAccessKey, tokenCache);
+            String accessToken = tokenManager.getAccessToken();
+            tokenManager.startRefresher();
 
-            if (command.equals(quotaCmd)) {
-                handleQuotaCommand(accessToken);
-            } else if (command.equals(listCmd)) {
-                String folder = argumentList.get(argumentList.size() - 1);
-                handleListCommand(accessToken, folder);
-            } else if (command.equals(downloadCmd)) {
-                String folder = argumentList.get(argumentList.size() - 1);
-                handleDownloadCommand(accessToken,folder); 
-            } else if (command.equals(uploadCmd)) {
-                String file = argumentList.get(argumentList.size() - 1);
-                handleUploadCommand(accessToken, file);
-            }  else {
-                System.out.println("Uknown command: " + command);
-                printUsage();
+            if (command.equals(daemonCmd)) {
+                handleDaemonCommand(accessToken, tokenCache, options);
+            } else if (command.equals(batchCmd)) {
+                System.exit(handleBatchCommand(commandArguments.get(0), accessToken, tokenCache, applicationId,
+                        accessKey, privateAccessKey, options));
+            } else {
+                System.exit(runCommand(command, commandArguments, accessToken, options.share, null, options));
             }
 
+        } catch (ToolExitException e) {
+            System.exit(e.status);
         } catch (Exception e) {
             e.printStackTrace();
         }
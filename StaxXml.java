@@ -0,0 +1,174 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * @file StaxXml.java
+ *
+ *       Single pass extraction of the fields of SugarSync xml responses.
+ *
+ *       A record is the set of leaf elements below an element, keyed by their
+ *       path relative to it ("displayName", "quota/limit"). All the fields
+ *       needed from a response are read in one scan instead of one XPath
+ *       evaluation (and one DOM) per field.
+ */
+class StaxXml {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private StaxXml() {
+    }
+
+    /**
+     * Creates a streaming reader over a response body
+     *
+     * @param in
+     *            the response stream
+     * @return the reader
+     * @throws XMLStreamException
+     */
+    static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+        return XML_INPUT_FACTORY.createXMLStreamReader(in);
+    }
+
+    /**
+     * Returns the record of the root element of a response
+     *
+     * @param xml
+     *            the xml server response
+     * @return the leaf paths below the root element mapped to their text
+     * @throws IOException
+     *             if the response is not well formed xml
+     */
+    static Map<String, String> readDocument(String xml) throws IOException {
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return readRecord(reader);
+                    }
+                }
+                return new HashMap<String, String>();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse the server response", e);
+        }
+    }
+
+    /**
+     * Returns the records of all the elements with the given name, in
+     * document order
+     *
+     * @param xml
+     *            the xml server response
+     * @param elementName
+     *            the name of the record elements
+     * @return the records
+     * @throws IOException
+     *             if the response is not well formed xml
+     */
+    static List<Map<String, String>> readRecords(String xml, String elementName) throws IOException {
+        List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(xml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && elementName.equals(reader.getLocalName())) {
+                        records.add(readRecord(reader));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot parse the server response", e);
+        }
+        return records;
+    }
+
+    /**
+     * Returns the record of the first element with the given name whose
+     * field has the given value
+     *
+     * @return the record or null if there is none
+     * @throws IOException
+     *             if the response is not well formed xml
+     */
+    static Map<String, String> findRecord(String xml, String elementName, String field, String value)
+            throws IOException {
+        for (Map<String, String> record : readRecords(xml, elementName)) {
+            if (value.equals(record.get(field))) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the leaf elements below the current element, leaving the reader
+     * on its end tag
+     *
+     * @param reader
+     *            a reader positioned on a start tag
+     * @return the leaf paths relative to the current element mapped to their
+     *         text
+     * @throws XMLStreamException
+     *             if the xml is not well formed
+     */
+    static Map<String, String> readRecord(XMLStreamReader reader) throws XMLStreamException {
+        Map<String, String> record = new HashMap<String, String>();
+        List<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        boolean leaf = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                path.add(reader.getLocalName());
+                text.setLength(0);
+                leaf = true;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (path.isEmpty()) {
+                    break;
+                }
+                if (leaf) {
+                    record.put(join(path), text.toString().trim());
+                }
+                leaf = false;
+                path.remove(path.size() - 1);
+            } else if (leaf && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getText());
+            }
+        }
+        return record;
+    }
+
+    private static String join(List<String> path) {
+        if (path.size() == 1) {
+            return path.get(0);
+        }
+        StringBuilder joined = new StringBuilder(path.get(0));
+        for (int i = 1; i < path.size(); i++) {
+            joined.append('/').append(path.get(i));
+        }
+        return joined.toString();
+    }
+}
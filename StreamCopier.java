@@ -0,0 +1,117 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * @file StreamCopier.java
+ *
+ *       Copies a response body straight to a file channel, or a file
+ *       channel to a request body. Every thread
+ *       reuses one small direct buffer, so the heap used by a transfer does
+ *       not depend on the size of the file. The copied bytes can be hashed
+ *       from the same buffer on the way. Every buffer is paced by the
+ *       BandwidthGovernor.
+ */
+class StreamCopier {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private StreamCopier() {
+    }
+
+    /**
+     * Copies exactly "count" bytes from the input stream to the file channel,
+     * starting at "position". The channel position is not changed, so several
+     * threads can copy into different regions of the same file.
+     *
+     * @param in
+     *            the response body
+     * @param out
+     *            the destination file
+     * @param position
+     *            the file offset of the first byte
+     * @param count
+     *            the number of bytes to copy
+     * @param hasher
+     *            hashes the copied bytes, or null
+     * @throws IOException
+     *             if any I/O error occurs or the stream ends early
+     */
+    static void copy(InputStream in, FileChannel out, long position, long count, ContentHash.BlockHasher hasher)
+            throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = BUFFERS.get();
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+            int read = source.read(buffer);
+            if (read == -1) {
+                throw new IOException("Stream closed after " + copied + " of " + count + " bytes");
+            }
+            BandwidthGovernor.throttle(read);
+            buffer.flip();
+            if (hasher != null) {
+                hasher.update(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                copied += out.write(buffer, position + copied);
+            }
+        }
+    }
+
+    /**
+     * Copies "count" bytes of the file channel, starting at "position", to
+     * the output stream
+     *
+     * @param in
+     *            the source file
+     * @param position
+     *            the file offset of the first byte
+     * @param count
+     *            the number of bytes to copy
+     * @param out
+     *            the request body
+     * @param hasher
+     *            hashes the copied bytes, or null
+     * @throws IOException
+     *             if any I/O error occurs or the file is shorter than
+     *             expected
+     */
+    static void copy(FileChannel in, long position, long count, OutputStream out, ContentHash.BlockHasher hasher)
+            throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        ByteBuffer buffer = BUFFERS.get();
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+            int read = in.read(buffer, position + copied);
+            if (read == -1) {
+                throw new IOException("File ended after " + copied + " of " + count + " bytes");
+            }
+            BandwidthGovernor.throttle(read);
+            buffer.flip();
+            if (hasher != null) {
+                hasher.update(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                copied += target.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.sugarsync.sample.tool;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file SyncEngine.java
+ *
+ *       Synchronizes a remote folder tree with a local directory in both
+ *       directions.
+ *
+ *       1. Walks the remote folder tree with a FolderCrawler and the local
+ *       directory
+ *
+ *       2. Compares both with the manifest written by the previous run, which
+ *       holds the remote ref, size and lastModified of each file and the local
+ *       size and modification time it had when it was last synchronized
+ *
+ *       3. Downloads the remote files which are new or changed, and uploads
+ *       the local files which are new or changed. When both sides changed
+ *       the remote file wins. Files whose content hashes are known to be
+ *       equal are not transferred, whatever their timestamps say.
+ *
+ *       Deletions are not propagated. A remote file whose path would lead
+ *       outside of the local directory (a ".." name in a received share) is
+ *       reported and skipped.
+ */
+class SyncEngine {
+
+    static final String MANIFEST_NAME = ".sugarsync-manifest";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String accessToken;
+    private final TransferOptions options;
+
+    /**
+     * @param accessToken
+     *            the access token
+     * @param options
+     *            the transfer options used for the downloads and uploads
+     */
+    SyncEngine(String accessToken, TransferOptions options) {
+        this.accessToken = accessToken;
+        this.options = options;
+    }
+
+    /**
+     * Synchronizes the remote folder with the local directory
+     *
+     * @param folderLink
+     *            the link of the remote folder representation
+     * @param localDir
+     *            the local directory
+     * @return true if every transfer succeeded
+     * @throws IOException
+     *             if any I/O error occurs
+     * @throws InterruptedException
+     */
+    boolean sync(String folderLink, File localDir) throws IOException, InterruptedException {
+        if (!localDir.isDirectory() && !localDir.mkdirs()) {
+            throw new IOException("Cannot create local directory " + localDir);
+        }
+        File manifestFile = new File(localDir, MANIFEST_NAME);
+        Map<String, ManifestEntry> manifest = readManifest(manifestFile);
+        HashIndex hashIndex = HashIndex.open(new File(options.hashIndexFile));
+
+        Map<String, RemoteEntry> remoteFiles = new TreeMap<String, RemoteEntry>();
+        Map<String, String> remoteFolders = new HashMap<String, String>();
+        remoteFolders.put("", folderLink);
+        walkRemote(folderLink, remoteFiles, remoteFolders);
+        Map<String, File> localFiles = walkLocal(localDir);
+
+        Map<String, ManifestEntry> newManifest = new TreeMap<String, ManifestEntry>();
+        Map<String, String> downloads = new HashMap<String, String>();
+        DownloadEngine engine = new DownloadEngine(accessToken, options);
+        List<String> uploads = new ArrayList<String>();
+        boolean success = true;
+        String root = localDir.getCanonicalPath() + File.separator;
+
+        for (Map.Entry<String, RemoteEntry> entry : remoteFiles.entrySet()) {
+            String path = entry.getKey();
+            RemoteEntry remote = entry.getValue();
+            if (!new File(localDir, path).getCanonicalPath().startsWith(root)) {
+                // the names of a received share are chosen by its owner
+                System.out.println("Skipping " + path + ": its path leads outside of " + localDir);
+                success = false;
+                continue;
+            }
+            ManifestEntry known = manifest.get(path);
+            File local = localFiles.get(path);
+
+            boolean remoteChanged = known == null || !known.ref.equals(remote.ref) || known.size != remote.size
+                    || !known.lastModified.equals(remote.lastModified);
+            boolean localChanged = local == null || known == null || local.length() != known.localSize
+                    || local.lastModified() != known.localModified;
+            String localHash = local == null ? null : hashIndex.localHash(local);
+            String remoteHash = hashIndex.remoteHash(remote);
+
+            if (localHash != null && localHash.equals(remoteHash)) {
+                // same content on both sides
+                newManifest.put(path, new ManifestEntry(remote, local));
+            } else if (local != null && known == null && localHash == null && remoteHash != null
+                    && local.length() == remote.size && remoteHash.equals(ContentHash.hashFile(local))) {
+                // first run over a directory which already holds the file;
+                // without the remote hash the file is downloaded below
+                hashIndex.putLocal(local, remoteHash);
+                newManifest.put(path, new ManifestEntry(remote, local));
+            } else if (local == null || remoteChanged) {
+                if (local != null && localChanged) {
+                    System.out.println("Conflict on " + path + ", keeping the remote version.");
+                }
+                File target = new File(localDir, path);
+                target.getParentFile().mkdirs();
+                downloads.put(target.getPath(), path);
+                engine.add(remote, target.getPath());
+            } else if (localChanged) {
+                if (remoteHash != null && local.length() == remote.size
+                        && remoteHash.equals(ContentHash.hashFile(local))) {
+                    // only the timestamp changed, the content is already there
+                    hashIndex.putLocal(local, remoteHash);
+                    newManifest.put(path, new ManifestEntry(remote, local));
+                } else {
+                    uploads.add(path);
+                }
+            } else {
+                newManifest.put(path, known);
+            }
+        }
+        for (String path : localFiles.keySet()) {
+            if (!remoteFiles.containsKey(path)) {
+                uploads.add(path);
+            }
+        }
+
+        System.out.println("\n" + downloads.size() + " files to download, " + uploads.size() + " files to upload, "
+                + newManifest.size() + " files unchanged.");
+
+        if (!downloads.isEmpty()) {
+            long start = System.nanoTime();
+            List<DownloadEngine.DownloadResult> results = engine.run();
+            DownloadEngine.printReport(results, System.nanoTime() - start);
+            for (DownloadEngine.DownloadResult result : results) {
+                String path = downloads.get(result.fileName);
+                if (result.isSuccessful()) {
+                    File local = new File(result.fileName);
+                    newManifest.put(path, new ManifestEntry(remoteFiles.get(path), local));
+                    if (result.contentHash != null) {
+                        hashIndex.putLocal(local, result.contentHash);
+                        hashIndex.putRemote(remoteFiles.get(path), result.contentHash);
+                    }
+                } else {
+                    keepPrevious(path, manifest, newManifest);
+                    success = false;
+                }
+            }
+        }
+
+        ResumableUploader uploader = new ResumableUploader(accessToken, hashIndex);
+        for (String path : uploads) {
+            File local = localFiles.get(path);
+            try {
+                RemoteEntry remote = remoteFiles.get(path);
+                String fileRef;
+                System.out.println("Begin Upload of " + path);
+                if (remote != null) {
+                    fileRef = remote.ref;
+                    uploader.uploadData(fileRef, local);
+                } else {
+                    fileRef = uploader.upload(ensureRemoteFolder(parentOf(path), remoteFolders), nameOf(path),
+                            local.getPath());
+                }
+                RemoteEntry uploaded = getFileEntry(fileRef);
+                newManifest.put(path, new ManifestEntry(uploaded, local));
+                String contentHash = hashIndex.localHash(local);
+                if (contentHash != null) {
+                    hashIndex.putRemote(uploaded, contentHash);
+                }
+                System.out.println("Done " + path + ".");
+            } catch (IOException e) {
+                System.out.println("Failed " + path + ": " + e.getMessage());
+                keepPrevious(path, manifest, newManifest);
+                success = false;
+            }
+        }
+
+        writeManifest(manifestFile, newManifest);
+        hashIndex.save();
+        return success;
+    }
+
+    /**
+     * Keeps the state of a file whose transfer failed, so the next run still
+     * sees it as changed
+     */
+    private static void keepPrevious(String path, Map<String, ManifestEntry> manifest,
+            Map<String, ManifestEntry> newManifest) {
+        if (manifest.containsKey(path)) {
+            newManifest.put(path, manifest.get(path));
+        }
+    }
+
+    /**
+     * Collects the files and folders below a remote folder
+     */
+    private void walkRemote(String folderLink, final Map<String, RemoteEntry> files, final Map<String, String> folders)
+            throws IOException, InterruptedException {
+        new FolderCrawler(accessToken, options.crawlParallelism, options.pageSize).crawl(folderLink, new FolderCrawler.Listener() {
+            public synchronized void onFile(String path, RemoteEntry file) {
+                files.put(path, file);
+            }
+
+            public synchronized void onFolder(String path, RemoteEntry folder) {
+                folders.put(path, folder.ref);
+            }
+        });
+    }
+
+    /**
+     * Returns the link of a remote folder, creating it and its missing
+     * parents
+     */
+    private String ensureRemoteFolder(String path, Map<String, String> folders) throws IOException {
+        String link = folders.get(path);
+        if (link == null) {
+            String parentLink = ensureRemoteFolder(parentOf(path), folders);
+            link = ApiClient.create(parentLink, accessToken, ApiClient.folderXml(nameOf(path)));
+            folders.put(path, link);
+        }
+        return link;
+    }
+
+    /**
+     * Reads the size and lastModified of a remote file after an upload
+     */
+    private RemoteEntry getFileEntry(String fileRef) throws IOException {
+        RemoteEntry file = RemoteEntry.fromFields(false, StaxXml.readDocument(get(fileRef)));
+        return new RemoteEntry(false, file.displayName, fileRef, file.size, file.lastModified, file.mediaType,
+                file.fileData);
+    }
+
+    private String get(String link) throws IOException {
+        HttpResponse response = ApiClient.get(link, accessToken);
+        if (response.getHttpStatusCode() > 299) {
+            throw new IOException("HTTP " + response.getHttpStatusCode() + " while reading " + link);
+        }
+        return response.getResponseBody();
+    }
+
+    /**
+     * Collects the regular files below the local directory, skipping the
+     * manifest and the transfer sidecar files
+     */
+    private static Map<String, File> walkLocal(final File localDir) throws IOException {
+        final Map<String, File> files = new TreeMap<String, File>();
+        final Path root = localDir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (attrs.isRegularFile() && !name.startsWith(MANIFEST_NAME)
+                        && !name.endsWith(ResumableDownloader.PART_SUFFIX)
+                        && !name.endsWith(ResumableDownloader.JOURNAL_SUFFIX)
+                        && !name.endsWith(ResumableUploader.CHECKPOINT_SUFFIX)) {
+                    files.put(root.relativize(file).toString().replace(File.separatorChar, '/'), file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash == -1 ? "" : path.substring(0, slash);
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static Map<String, ManifestEntry> readManifest(File manifestFile) throws IOException {
+        Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+        if (!manifestFile.exists()) {
+            return manifest;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length == 6) {
+                    manifest.put(fields[0], new ManifestEntry(fields[1], Long.parseLong(fields[2]), fields[3],
+                            Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest to a temporary file and renames it into place, so
+     * an interrupted run never leaves a truncated manifest
+     */
+    private static void writeManifest(File manifestFile, Map<String, ManifestEntry> manifest) throws IOException {
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+        try {
+            for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+                ManifestEntry e = entry.getValue();
+                writer.write(entry.getKey() + "\t" + e.ref + "\t" + e.size + "\t" + e.lastModified + "\t"
+                        + e.localSize + "\t" + e.localModified + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * The state of a file when it was last synchronized
+     */
+    private static class ManifestEntry {
+        private final String ref;
+        private final long size;
+        private final String lastModified;
+        private final long localSize;
+        private final long localModified;
+
+        private ManifestEntry(String ref, long size, String lastModified, long localSize, long localModified) {
+            this.ref = ref;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.localSize = localSize;
+            this.localModified = localModified;
+        }
+
+        private ManifestEntry(RemoteEntry remote, File local) {
+            this(remote.ref, remote.size, remote.lastModified, local.length(), local.lastModified());
+        }
+    }
+}
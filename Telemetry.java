@@ -0,0 +1,407 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @file Telemetry.java
+ *
+ *       Records where the time of the tool goes, for all the threads:
+ *
+ *       - the latency of every API request, per endpoint (method, host and
+ *       first path element, e.g. "GET api.sugarsync.com/file/data"), from
+ *       sending the request to receiving the response status, and the number
+ *       of failed and retried requests
+ *
+ *       - the throughput of every file transfer, per direction
+ *
+ *       - the time spent waiting in the queues of the tool: the request rate
+ *       limit, the download queue and the daemon job queue
+ *
+ *       The values go into log-linear histograms (16 sub-buckets per power of
+ *       two, so percentiles are within about 6% of the exact value) which
+ *       take a fixed amount of memory whatever the number of samples. The
+ *       summary can be printed, written as JSON or written in the Prometheus
+ *       text format for a node exporter textfile collector.
+ */
+class Telemetry {
+
+    private static final ConcurrentSkipListMap<String, Histogram> requestLatencies = new ConcurrentSkipListMap<String, Histogram>();
+    private static final ConcurrentSkipListMap<String, AtomicLong> requestErrors = new ConcurrentSkipListMap<String, AtomicLong>();
+    private static final ConcurrentSkipListMap<String, AtomicLong> requestRetries = new ConcurrentSkipListMap<String, AtomicLong>();
+    private static final ConcurrentSkipListMap<String, Histogram> transferRates = new ConcurrentSkipListMap<String, Histogram>();
+    private static final ConcurrentSkipListMap<String, AtomicLong> transferredBytes = new ConcurrentSkipListMap<String, AtomicLong>();
+    private static final ConcurrentSkipListMap<String, Histogram> queueWaits = new ConcurrentSkipListMap<String, Histogram>();
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private Telemetry() {
+    }
+
+    /**
+     * Records the latency of an API request
+     *
+     * @param endpoint
+     *            the endpoint of the request
+     * @param nanos
+     *            the time until the response status was received
+     * @param failed
+     *            true for a connection error, a 429 or a 5xx response
+     */
+    static void recordRequest(String endpoint, long nanos, boolean failed) {
+        histogram(requestLatencies, endpoint).record(nanos / 1000);
+        if (failed) {
+            counter(requestErrors, endpoint).incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a request to the endpoint is sent again
+     */
+    static void recordRetry(String endpoint) {
+        counter(requestRetries, endpoint).incrementAndGet();
+    }
+
+    /**
+     * Records a completed file transfer
+     *
+     * @param direction
+     *            "download" or "upload"
+     * @param bytes
+     *            the number of bytes transferred
+     * @param nanos
+     *            the duration of the transfer
+     */
+    static void recordTransfer(String direction, long bytes, long nanos) {
+        counter(transferredBytes, direction).addAndGet(bytes);
+        if (nanos > 0) {
+            histogram(transferRates, direction).record((long) (bytes / (nanos / 1e9)));
+        }
+    }
+
+    /**
+     * Records the time a request, a file or a job waited in a queue
+     *
+     * @param queue
+     *            the name of the queue
+     * @param nanos
+     *            the waiting time
+     */
+    static void recordQueueWait(String queue, long nanos) {
+        histogram(queueWaits, queue).record(nanos / 1000);
+    }
+
+    /**
+     * Prints the latency percentiles, the transfer rates and the queue waits
+     */
+    static void printMetrics() {
+        DecimalFormat format = new DecimalFormat("#.###");
+        System.out.println("\n---REQUEST LATENCY (ms)---");
+        for (Map.Entry<String, Histogram> entry : requestLatencies.entrySet()) {
+            Histogram histogram = entry.getValue();
+            System.out.println(entry.getKey() + ": " + histogram.getCount() + " requests, "
+                    + count(requestErrors, entry.getKey()) + " failed, " + count(requestRetries, entry.getKey())
+                    + " retried, p50 " + format.format(histogram.percentile(0.5) / 1e3) + ", p90 "
+                    + format.format(histogram.percentile(0.9) / 1e3) + ", p99 "
+                    + format.format(histogram.percentile(0.99) / 1e3) + ", max "
+                    + format.format(histogram.getMax() / 1e3));
+        }
+        System.out.println("\n---TRANSFER RATE (MB/s)---");
+        for (Map.Entry<String, Histogram> entry : transferRates.entrySet()) {
+            Histogram histogram = entry.getValue();
+            System.out.println(entry.getKey() + ": " + histogram.getCount() + " files, "
+                    + format.format(count(transferredBytes, entry.getKey()) / (1024.0 * 1024)) + " MB, p50 "
+                    + format.format(histogram.percentile(0.5) / (1024.0 * 1024)) + ", min "
+                    + format.format(histogram.getMin() / (1024.0 * 1024)));
+        }
+        System.out.println("\n---QUEUE WAIT (ms)---");
+        for (Map.Entry<String, Histogram> entry : queueWaits.entrySet()) {
+            Histogram histogram = entry.getValue();
+            System.out.println(entry.getKey() + ": " + histogram.getCount() + " waits, mean "
+                    + format.format(histogram.getMean() / 1e3) + ", p99 "
+                    + format.format(histogram.percentile(0.99) / 1e3) + ", max "
+                    + format.format(histogram.getMax() / 1e3));
+        }
+    }
+
+    /**
+     * Writes the metrics as a JSON document
+     *
+     * @param file
+     *            the destination file, replaced atomically
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static void writeJson(File file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"requests\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Histogram> entry : requestLatencies.entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {\"errors\": ")
+                    .append(count(requestErrors, entry.getKey())).append(", \"retries\": ")
+                    .append(count(requestRetries, entry.getKey())).append(", \"latencyMicros\": ");
+            entry.getValue().appendJson(json);
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"transfers\": {");
+        separator = "\n";
+        for (Map.Entry<String, AtomicLong> entry : transferredBytes.entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {\"bytes\": ")
+                    .append(entry.getValue().get()).append(", \"bytesPerSecond\": ");
+            Histogram rates = transferRates.get(entry.getKey());
+            (rates == null ? new Histogram() : rates).appendJson(json);
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"queueWaits\": {");
+        separator = "\n";
+        for (Map.Entry<String, Histogram> entry : queueWaits.entrySet()) {
+            json.append(separator).append("    ").append(quote(entry.getKey())).append(": {\"waitMicros\": ");
+            entry.getValue().appendJson(json);
+            json.append("}");
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        write(file, json.toString());
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format
+     *
+     * @param file
+     *            the destination file, replaced atomically
+     * @throws IOException
+     *             if any I/O error occurs
+     */
+    static void writePrometheus(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP sugarsync_request_seconds Latency of the API requests until the response status.\n");
+        text.append("# TYPE sugarsync_request_seconds summary\n");
+        for (Map.Entry<String, Histogram> entry : requestLatencies.entrySet()) {
+            appendSummary(text, "sugarsync_request_seconds", "endpoint", entry.getKey(), entry.getValue(), 1e-6);
+        }
+        text.append("# HELP sugarsync_request_errors_total API requests that failed or were throttled.\n");
+        text.append("# TYPE sugarsync_request_errors_total counter\n");
+        for (String endpoint : requestLatencies.keySet()) {
+            text.append("sugarsync_request_errors_total{endpoint=").append(quote(endpoint)).append("} ")
+                    .append(count(requestErrors, endpoint)).append('\n');
+        }
+        text.append("# HELP sugarsync_request_retries_total API requests sent again.\n");
+        text.append("# TYPE sugarsync_request_retries_total counter\n");
+        for (String endpoint : requestLatencies.keySet()) {
+            text.append("sugarsync_request_retries_total{endpoint=").append(quote(endpoint)).append("} ")
+                    .append(count(requestRetries, endpoint)).append('\n');
+        }
+        text.append("# HELP sugarsync_transferred_bytes_total Bytes of the completed file transfers.\n");
+        text.append("# TYPE sugarsync_transferred_bytes_total counter\n");
+        for (Map.Entry<String, AtomicLong> entry : transferredBytes.entrySet()) {
+            text.append("sugarsync_transferred_bytes_total{direction=").append(quote(entry.getKey()))
+                    .append("} ").append(entry.getValue().get()).append('\n');
+        }
+        text.append("# HELP sugarsync_transfer_bytes_per_second Throughput of the file transfers.\n");
+        text.append("# TYPE sugarsync_transfer_bytes_per_second summary\n");
+        for (Map.Entry<String, Histogram> entry : transferRates.entrySet()) {
+            appendSummary(text, "sugarsync_transfer_bytes_per_second", "direction", entry.getKey(),
+                    entry.getValue(), 1);
+        }
+        text.append("# HELP sugarsync_queue_wait_seconds Time spent waiting in the queues of the tool.\n");
+        text.append("# TYPE sugarsync_queue_wait_seconds summary\n");
+        for (Map.Entry<String, Histogram> entry : queueWaits.entrySet()) {
+            appendSummary(text, "sugarsync_queue_wait_seconds", "queue", entry.getKey(), entry.getValue(), 1e-6);
+        }
+        write(file, text.toString());
+    }
+
+    private static void appendSummary(StringBuilder text, String name, String label, String value,
+            Histogram histogram, double scale) {
+        String labels = label + "=" + quote(value);
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(quantile) * scale).append('\n');
+        }
+        text.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSum() * scale)
+                .append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void write(File file, String content) throws IOException {
+        File tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(),
+                file.getName() + ".", ".tmp").toFile();
+        // read by the metrics collector, which may run as another user
+        tmp.setReadable(true, false);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                writer.write(content);
+            } finally {
+                writer.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // left only if the write or the move failed
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Quotes a string for JSON and for Prometheus label values, which use the
+     * same escapes for the characters found in endpoint and queue names
+     */
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c == '\n') {
+                quoted.append("\\n");
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static Histogram histogram(ConcurrentSkipListMap<String, Histogram> histograms, String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private static AtomicLong counter(ConcurrentSkipListMap<String, AtomicLong> counters, String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static long count(Map<String, AtomicLong> counters, String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * A histogram of non negative values. Values below 16 have their own
+     * bucket; above, each power of two is split into 16 buckets.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            counts.incrementAndGet(bucketOf(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long current;
+            while (v < (current = min.get()) && !min.compareAndSet(current, v)) {
+                // retry
+            }
+            while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+                // retry
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getSum() {
+            return sum.get();
+        }
+
+        long getMin() {
+            return count.get() == 0 ? 0 : min.get();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / (double) n;
+        }
+
+        /**
+         * Returns the value below which the given fraction of the samples
+         * falls, as the middle of its bucket
+         *
+         * @param quantile
+         *            between 0 and 1
+         */
+        long percentile(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * n));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts.get(bucket);
+                if (seen >= rank) {
+                    long low = lowestValue(bucket);
+                    long middle = low + (lowestValue(bucket + 1) - low - 1) / 2;
+                    return Math.min(Math.max(middle, getMin()), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void appendJson(StringBuilder json) {
+            json.append("{\"count\": ").append(getCount()).append(", \"min\": ").append(getMin())
+                    .append(", \"mean\": ").append(Math.round(getMean())).append(", \"p50\": ")
+                    .append(percentile(0.5)).append(", \"p90\": ").append(percentile(0.9)).append(", \"p99\": ")
+                    .append(percentile(0.99)).append(", \"max\": ").append(getMax()).append("}");
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (exponent + 1) * SUB_BUCKETS + (int) (value >>> exponent) - SUB_BUCKETS;
+        }
+
+        private static long lowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS - 1;
+            if (exponent > 63 - SUB_BUCKET_BITS - 1) {
+                // past the largest long
+                return Long.MAX_VALUE;
+            }
+            return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS)) << exponent;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sugarsync.sample.auth.AccessToken;
+import com.sugarsync.sample.auth.RefreshToken;
+import com.sugarsync.sample.util.HttpResponse;
+
+/**
+ * @file TokenManager.java
+ *
+ *       Holds the refresh token and the access token of the tool user.
+ *
+ *       Both tokens are kept in a cache file readable only by its owner, so a
+ *       run reuses the refresh token and, while it has not expired, the access
+ *       token of the previous run instead of making the two authorization
+ *       requests again. The cache is only used for the same user, application
+ *       and access key; the password is never written.
+ *
+ *       The access token is renewed before it expires, in the background
+ *       during long transfers, or when the server rejects it with a 401. A
+ *       failed background renewal is retried with a growing delay.
+ */
+class TokenManager {
+
+    static final String DEFAULT_CACHE_NAME = ".sugarsync-tokens";
+
+    // access tokens are renewed this long before they expire
+    private static final long REFRESH_MARGIN_MILLIS = 5 * 60 * 1000;
+
+    // a failed background renewal is retried after this delay, doubled on
+    // every failure up to the maximum
+    private static final long RETRY_MIN_MILLIS = 5 * 1000;
+    private static final long RETRY_MAX_MILLIS = 2 * 60 * 1000;
+
+    // lifetime assumed when the server does not return an expiration
+    private static final long DEFAULT_LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    // the authorization calls of the SDK, recorded like the ApiClient requests
+    private static final String AUTHORIZATION_METRIC = "POST api.sugarsync.com/app-authorization";
+    private static final String ACCESS_TOKEN_METRIC = "POST api.sugarsync.com/authorization";
+
+    private final File cacheFile;
+    private final String username;
+    private final String password;
+    private final String applicationId;
+    private final String accessKey;
+    private final String privateAccessKey;
+
+    private String refreshToken;
+    private volatile String accessToken;
+    private long expiresAt;
+
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param cacheFile
+     *            the token cache file
+     * @param username
+     *            SugarSync username (email address)
+     * @param password
+     *            SugarSync password
+     * @param applicationId
+     *            The developer application id
+     * @param accessKey
+     *            Developer accessKey
+     * @param privateAccessKey
+     *            Developer privateAccessKey
+     */
+    TokenManager(File cacheFile, String username, String password, String applicationId, String accessKey,
+            String privateAccessKey) {
+        this.cacheFile = cacheFile;
+        this.username = username;
+        this.password = password;
+        this.applicationId = applicationId;
+        this.accessKey = accessKey;
+        this.privateAccessKey = privateAccessKey;
+        readCache();
+    }
+
+    /**
+     * Returns a valid access token, requesting a new one if there is none or
+     * it is about to expire
+     *
+     * @return the access token
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects the
+     *             credentials
+     */
+    synchronized String getAccessToken() throws IOException {
+        if (accessToken == null || System.currentTimeMillis() > expiresAt - REFRESH_MARGIN_MILLIS) {
+            renew();
+        }
+        return accessToken;
+    }
+
+    /**
+     * Returns the current access token without checking its expiration
+     */
+    String currentAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * Renews the access token after the server rejected it. Does nothing if
+     * another request already renewed it.
+     *
+     * @param rejectedToken
+     *            the access token sent with the rejected request
+     * @return the access token to retry with
+     * @throws IOException
+     *             if any I/O error occurs or the server rejects the
+     *             credentials
+     */
+    synchronized String refresh(String rejectedToken) throws IOException {
+        if (rejectedToken == null || rejectedToken.equals(accessToken)) {
+            renew();
+        }
+        return accessToken;
+    }
+
+    /**
+     * Starts renewing the access token in the background shortly before it
+     * expires
+     */
+    synchronized void startRefresher() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "token-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduleRefresh();
+    }
+
+    /**
+     * Stops the background renewal
+     */
+    synchronized void stopRefresher() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Schedules the background renewal shortly before the access token
+     * expires
+     */
+    private void scheduleRefresh() {
+        scheduleRefresh(Math.max(0, expiresAt - REFRESH_MARGIN_MILLIS - System.currentTimeMillis()),
+                RETRY_MIN_MILLIS);
+    }
+
+    /**
+     * Schedules a background renewal, retried with a growing delay while it
+     * fails
+     *
+     * @param delay
+     *            the time to wait before renewing, in milliseconds
+     * @param retryDelay
+     *            the time to wait before trying again if the renewal fails
+     */
+    private void scheduleRefresh(long delay, final long retryDelay) {
+        refresher.schedule(new Runnable() {
+            public void run() {
+                synchronized (TokenManager.this) {
+                    if (refresher == null) {
+                        return;
+                    }
+                    try {
+                        getAccessToken();
+                        scheduleRefresh();
+                    } catch (IOException e) {
+                        System.out.println("Could not renew the access token, retrying in " + retryDelay / 1000
+                                + " s: " + e.getMessage());
+                        scheduleRefresh(retryDelay, Math.min(retryDelay * 2, RETRY_MAX_MILLIS));
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests a new access token with the refresh token, authorizing again
+     * with the user credentials if there is no refresh token or the cached
+     * one is no longer accepted
+     */
+    private void renew() throws IOException {
+        boolean cachedRefreshToken = refreshToken != null;
+        if (!cachedRefreshToken) {
+            refreshToken = authorize();
+        }
+        HttpResponse response = requestAccessToken(refreshToken);
+        if (response.getHttpStatusCode() > 299 && cachedRefreshToken) {
+            refreshToken = authorize();
+            response = requestAccessToken(refreshToken);
+        }
+        if (response.getHttpStatusCode() > 299) {
+            throw new IOException("Error while getting access token! HTTP " + response.getHttpStatusCode());
+        }
+        accessToken = response.getHeader("Location").getValue();
+        expiresAt = parseExpiration(response.getResponseBody());
+        try {
+            writeCache();
+        } catch (IOException e) {
+            // the new token is valid, only the next run has to authorize
+            // again
+            System.out.println("Could not write the token cache " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    private HttpResponse requestAccessToken(String refreshToken) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = AccessToken.getAccessTokenResponse(accessKey, privateAccessKey, refreshToken);
+        Telemetry.recordRequest(ACCESS_TOKEN_METRIC, System.nanoTime() - start, response.getHttpStatusCode() >= 500);
+        return response;
+    }
+
+    private String authorize() throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = RefreshToken.getAuthorizationResponse(username, password, applicationId, accessKey,
+                privateAccessKey);
+        Telemetry.recordRequest(AUTHORIZATION_METRIC, System.nanoTime() - start, response.getHttpStatusCode() >= 500);
+        if (response.getHttpStatusCode() > 299) {
+            throw new IOException("Error while getting refresh token! HTTP " + response.getHttpStatusCode());
+        }
+        return response.getHeader("Location").getValue();
+    }
+
+    /**
+     * Reads the expiration of an access token from the authorization
+     * response body
+     */
+    private static long parseExpiration(String body) {
+        try {
+            String expiration = StaxXml.readDocument(body).get("expiration");
+            if (expiration != null && expiration.length() > 0) {
+                return OffsetDateTime.parse(expiration).toInstant().toEpochMilli();
+            }
+        } catch (IOException e) {
+            // fall back to the default lifetime
+        } catch (DateTimeParseException e) {
+            // fall back to the default lifetime
+        }
+        return System.currentTimeMillis() + DEFAULT_LIFETIME_MILLIS;
+    }
+
+    private void readCache() {
+        if (!cacheFile.isFile()) {
+            return;
+        }
+        Properties cache = new Properties();
+        try {
+            InputStream in = new FileInputStream(cacheFile);
+            try {
+                cache.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // a damaged cache is ignored and rewritten
+            return;
+        }
+        if (!username.equals(cache.getProperty("username"))
+                || !applicationId.equals(cache.getProperty("applicationId"))
+                || !accessKey.equals(cache.getProperty("accessKey"))) {
+            return;
+        }
+        refreshToken = cache.getProperty("refreshToken");
+        accessToken = cache.getProperty("accessToken");
+        try {
+            expiresAt = Long.parseLong(cache.getProperty("expiresAt", "0"));
+        } catch (NumberFormatException e) {
+            accessToken = null;
+        }
+    }
+
+    /**
+     * Replaces the cache file with one created readable and writable by its
+     * owner only. The temporary file has a unique name, so processes renewing
+     * at the same time do not write into each other's file.
+     */
+    private void writeCache() throws IOException {
+        Properties cache = new Properties();
+        cache.setProperty("username", username);
+        cache.setProperty("applicationId", applicationId);
+        cache.setProperty("accessKey", accessKey);
+        cache.setProperty("refreshToken", refreshToken);
+        cache.setProperty("accessToken", accessToken);
+        cache.setProperty("expiresAt", String.valueOf(expiresAt));
+
+        File directory = cacheFile.getAbsoluteFile().getParentFile();
+        File tmpFile;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            tmpFile = Files.createTempFile(directory.toPath(), cacheFile.getName() + ".", ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))).toFile();
+        } else {
+            tmpFile = Files.createTempFile(directory.toPath(), cacheFile.getName() + ".", ".tmp").toFile();
+            tmpFile.setReadable(false, false);
+            tmpFile.setReadable(true, true);
+            tmpFile.setWritable(false, false);
+            tmpFile.setWritable(true, true);
+        }
+        try {
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                cache.store(out, "SugarSync sample tool tokens");
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // left only if the write or the move failed
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.sugarsync.sample.tool;
+
+/**
+ * @file ToolExitException.java
+ *
+ *       Ends a tool command early, after the reason was printed. The command
+ *       line tool exits with the status; the daemon reports it to the client
+ *       and keeps running.
+ */
+class ToolExitException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    /**
+     * @param status
+     *            the exit status of the command
+     */
+    ToolExitException(int status) {
+        super("Command ended with status " + status);
+        this.status = status;
+    }
+}
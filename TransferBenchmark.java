@@ -0,0 +1,361 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sugarsync.sample.util.HttpResponse;
+import com.sugarsync.sample.util.XmlUtil;
+
+/**
+ * @file TransferBenchmark.java
+ *
+ *       Measures the parsing, crawling, download and upload code of the tool
+ *       against a MockSugarSyncServer, so a change can be evaluated offline
+ *       and a regression shows up before it reaches the nightly jobs. The
+ *       single pass StAX parsing is measured next to the XPath over DOM
+ *       extraction it replaced, on the same responses.
+ *
+ *       Each scenario runs a few warm up iterations, then the measured ones,
+ *       and reports the mean and best time per operation and, for transfers,
+ *       the throughput. The means can be saved to a file and later runs
+ *       compared with it; the run fails when a scenario is slower than the
+ *       baseline by more than the tolerance.
+ *
+ *       java -cp sample-tool.jar com.sugarsync.sample.tool.TransferBenchmark
+ *       [-latency <ms>] [-bandwidth <mbps>] [-filesize <mb>] [-iterations <n>]
+ *       [-warmup <n>] [-save <file>] [-baseline <file>] [-tolerance <percent>]
+ */
+class TransferBenchmark {
+
+    private static final long ONE_MB = 1024 * 1024;
+    // the fields of a file entry read by RemoteEntry.fromFields
+    private static final List<String> CONTENTS_FIELDS = Arrays.asList("displayName", "ref", "size", "lastModified",
+            "mediaType", "fileData");
+
+    /**
+     * A measured operation
+     */
+    private interface Scenario {
+        /**
+         * @return the number of file bytes transferred, 0 if none
+         * @throws Exception
+         *             if the operation fails
+         */
+        long run() throws Exception;
+    }
+
+    private final int warmup;
+    private final int iterations;
+    private final Map<String, Double> means = new LinkedHashMap<String, Double>();
+
+    private TransferBenchmark(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = Arrays.asList(args);
+        long latency = Long.parseLong(option(arguments, "-latency", "5"));
+        long bandwidth = Long.parseLong(option(arguments, "-bandwidth", "0")) * ONE_MB / 8;
+        long fileSize = Long.parseLong(option(arguments, "-filesize", "64")) * ONE_MB;
+        int iterations = Integer.parseInt(option(arguments, "-iterations", "5"));
+        int warmup = Integer.parseInt(option(arguments, "-warmup", "2"));
+        String save = option(arguments, "-save", null);
+        String baseline = option(arguments, "-baseline", null);
+        double tolerance = Double.parseDouble(option(arguments, "-tolerance", "20"));
+
+        // the mock server is not rate limited and must not be retried
+        ApiClient.setRequestScheduler(new RequestScheduler(100000, 0));
+        final MockSugarSyncServer server = new MockSugarSyncServer(4, 3, 50, fileSize, latency, bandwidth);
+        server.start();
+        final File workDir = Files.createTempDirectory("sugarsync-bench").toFile();
+        try {
+            TransferBenchmark benchmark = new TransferBenchmark(warmup, iterations);
+            benchmark.runAll(server, workDir);
+            if (save != null) {
+                benchmark.save(new File(save));
+            }
+            if (baseline != null && !benchmark.compare(new File(baseline), tolerance)) {
+                System.exit(1);
+            }
+        } finally {
+            server.stop();
+            deleteTree(workDir);
+        }
+        System.exit(0);
+    }
+
+    private void runAll(final MockSugarSyncServer server, final File workDir) throws Exception {
+        final String token = "benchmark";
+        final String userXml = ApiClient.get(server.userLink(), token).getResponseBody();
+        final String contentsXml = ApiClient.get(server.folderLink(MockSugarSyncServer.ROOT_ID)
+                + "/contents?type=file&start=0&max=500", token).getResponseBody();
+        final String dataLink = server.fileDataLink(MockSugarSyncServer.ROOT_ID + "-0");
+        final long fileSize = server.getFileSize();
+
+        System.out.println("---BENCHMARK--- (" + warmup + " warm up, " + iterations + " measured iterations)");
+        measure("xml.user x1000", new Scenario() {
+            public long run() throws IOException {
+                for (int i = 0; i < 1000; i++) {
+                    UserRecord.parse(userXml);
+                }
+                return 0;
+            }
+        });
+        measure("xml.collectionContents x100", new Scenario() {
+            public long run() throws IOException {
+                for (int i = 0; i < 100; i++) {
+                    StaxXml.readRecords(contentsXml, "file");
+                }
+                return 0;
+            }
+        });
+        // the XPath extraction replaced by UserRecord and StaxXml: one DOM and
+        // one expression per field
+        measure("xml.user.xpath x1000", new Scenario() {
+            public long run() throws Exception {
+                for (int i = 0; i < 1000; i++) {
+                    XmlUtil.getNodeValues(userXml, "/user/quota/limit/text()");
+                    XmlUtil.getNodeValues(userXml, "/user/quota/usage/text()");
+                }
+                return 0;
+            }
+        });
+        measure("xml.collectionContents.xpath x100", new Scenario() {
+            public long run() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    for (String field : CONTENTS_FIELDS) {
+                        XmlUtil.getNodeValues(contentsXml, "/collectionContents/file/" + field + "/text()");
+                    }
+                }
+                return 0;
+            }
+        });
+        DecimalFormat ratio = new DecimalFormat("#.#");
+        System.out.println("StAX over XPath: user " + ratio.format(means.get("xml.user.xpath x1000")
+                / means.get("xml.user x1000")) + "x, collectionContents "
+                + ratio.format(means.get("xml.collectionContents.xpath x100")
+                        / means.get("xml.collectionContents x100")) + "x faster");
+        measure("metadata.get x50", new Scenario() {
+            public long run() throws IOException {
+                for (int i = 0; i < 50; i++) {
+                    HttpResponse response = ApiClient.get(server.folderLink(MockSugarSyncServer.ROOT_ID), token);
+                    FolderRecord.parse(response.getResponseBody());
+                }
+                return 0;
+            }
+        });
+        measure("crawl " + server.folderCount() + " folders", new Scenario() {
+            public long run() throws Exception {
+                final AtomicLong files = new AtomicLong();
+                new FolderCrawler(token, FolderCrawler.DEFAULT_PARALLELISM, CollectionContentsReader.DEFAULT_PAGE_SIZE)
+                        .crawl(server.folderLink(MockSugarSyncServer.ROOT_ID), new FolderCrawler.Listener() {
+                            public void onFile(String path, RemoteEntry file) {
+                                files.incrementAndGet();
+                            }
+
+                            public void onFolder(String path, RemoteEntry folder) {
+                            }
+                        });
+                return 0;
+            }
+        });
+        final RemoteIndex remoteIndex = RemoteIndex.open(new File(workDir, RemoteIndex.DEFAULT_INDEX_NAME));
+        final ChangePoller poller = new ChangePoller(token, remoteIndex, FolderCrawler.DEFAULT_PARALLELISM,
+                CollectionContentsReader.DEFAULT_PAGE_SIZE);
+        poller.poll(server.folderLink(MockSugarSyncServer.ROOT_ID));
+        measure("changes.poll " + server.folderCount() + " unchanged folders", new Scenario() {
+            public long run() throws Exception {
+                if (poller.poll(server.folderLink(MockSugarSyncServer.ROOT_ID)) != 0) {
+                    throw new IllegalStateException("Changes found in an unchanged tree");
+                }
+                return 0;
+            }
+        });
+        measure("download.single-stream", new Scenario() {
+            public long run() throws IOException {
+                File target = new File(workDir, "single.mov");
+                long transferred = new ResumableDownloader(token, fileSize, 1).download(dataLink, target.getPath(),
+                        fileSize, ResumableDownloader.versionOf(dataLink, fileSize, null)).transferred;
+                target.delete();
+                return transferred;
+            }
+        });
+        measure("download.4-segments", new Scenario() {
+            public long run() throws IOException {
+                File target = new File(workDir, "segments.mov");
+                long transferred = new ResumableDownloader(token, ContentHash.alignToBlocks(fileSize / 4), 4)
+                        .download(dataLink, target.getPath(), fileSize,
+                                ResumableDownloader.versionOf(dataLink, fileSize, null)).transferred;
+                target.delete();
+                return transferred;
+            }
+        });
+        measure("download.4-files", new Scenario() {
+            public long run() throws IOException, InterruptedException {
+                TransferOptions options = new TransferOptions();
+                options.parallelism = 4;
+                options.segments = 1;
+                DownloadEngine engine = new DownloadEngine(token, options);
+                for (int i = 0; i < 4; i++) {
+                    engine.add(server.fileDataLink(MockSugarSyncServer.ROOT_ID + "-" + i),
+                            new File(workDir, "file" + i + ".mov").getPath(), fileSize);
+                }
+                long transferred = 0;
+                for (DownloadEngine.DownloadResult result : engine.run()) {
+                    if (!result.isSuccessful()) {
+                        throw new IllegalStateException(result.error);
+                    }
+                    transferred += result.bytes;
+                    new File(result.fileName).delete();
+                }
+                return transferred;
+            }
+        });
+        final File uploadFile = new File(workDir, "upload.mov");
+        writeFile(uploadFile, fileSize);
+        measure("upload", new Scenario() {
+            public long run() throws IOException {
+                new ResumableUploader(token).upload(
+                        server.folderLink(MockSugarSyncServer.ROOT_ID), uploadFile.getName(), uploadFile.getPath());
+                return uploadFile.length();
+            }
+        });
+    }
+
+    /**
+     * Runs a scenario and prints its timings
+     */
+    private void measure(String name, Scenario scenario) throws Exception {
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        long bytes = 0;
+        // the progress messages of the transfers are not part of the report
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        try {
+            for (int i = 0; i < warmup; i++) {
+                scenario.run();
+            }
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                bytes = scenario.run();
+                long nanos = System.nanoTime() - start;
+                total += nanos;
+                best = Math.min(best, nanos);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        double meanMillis = total / 1e6 / Math.max(1, iterations);
+        means.put(name, meanMillis);
+
+        DecimalFormat format = new DecimalFormat("#.###");
+        String line = name + ": mean " + format.format(meanMillis) + " ms, best " + format.format(best / 1e6) + " ms";
+        if (bytes > 0) {
+            line += " (" + format.format(bytes / (double) ONE_MB / (meanMillis / 1e3)) + " MB/s)";
+        }
+        System.out.println(line);
+    }
+
+    private void save(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : means.entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "TransferBenchmark mean milliseconds per operation");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compares the means with a saved baseline
+     *
+     * @return false if a scenario is slower than the baseline by more than
+     *         the tolerance
+     */
+    private boolean compare(File file, double tolerancePercent) throws IOException {
+        Properties baseline = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            baseline.load(in);
+        } finally {
+            in.close();
+        }
+        DecimalFormat format = new DecimalFormat("#.#");
+        List<String> regressions = new ArrayList<String>();
+        System.out.println("\n---COMPARED WITH " + file + "---");
+        for (Map.Entry<String, Double> entry : means.entrySet()) {
+            String previous = baseline.getProperty(entry.getKey());
+            if (previous == null) {
+                continue;
+            }
+            double change = (entry.getValue() / Double.parseDouble(previous) - 1) * 100;
+            System.out.println(entry.getKey() + ": " + (change >= 0 ? "+" : "") + format.format(change) + "%");
+            if (change > tolerancePercent) {
+                regressions.add(entry.getKey());
+            }
+        }
+        if (!regressions.isEmpty()) {
+            System.out.println("Slower than the baseline by more than " + tolerancePercent + "%: " + regressions);
+            return false;
+        }
+        return true;
+    }
+
+    private static String option(List<String> arguments, String name, String defaultValue) {
+        int index = arguments.indexOf(name);
+        return index == -1 || index + 1 >= arguments.size() ? defaultValue : arguments.get(index + 1);
+    }
+
+    private static void writeFile(File file, long size) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            byte[] block = new byte[(int) ONE_MB];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,105 @@
+package com.sugarsync.sample.tool;
+
+import java.io.File;
+
+/**
+ * @file TransferOptions.java
+ *
+ *       The optional tool parameters that tune file transfers.
+ */
+class TransferOptions {
+
+    static final int DEFAULT_PARALLELISM = 4;
+    static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 4096L * 1024 * 1024;
+    static final String DEFAULT_SHARE = "CapCityCreative";
+
+    // received share the list, download, sync and changes commands work in
+    String share = DEFAULT_SHARE;
+
+    // maximum number of files transferred at the same time
+    int parallelism = DEFAULT_PARALLELISM;
+
+    // maximum number of bytes transferred at the same time
+    long maxInFlightBytes = DEFAULT_MAX_IN_FLIGHT_BYTES;
+
+    // number of connections used for a single large file
+    int segments = ResumableDownloader.DEFAULT_SEGMENTS;
+
+    // size of a single byte range request
+    long segmentSize = ResumableDownloader.DEFAULT_SEGMENT_SIZE;
+
+    // maximum number of concurrent requests while walking a folder tree
+    int crawlParallelism = FolderCrawler.DEFAULT_PARALLELISM;
+
+    // maximum number of entries requested at a time from a folder listing
+    int pageSize = CollectionContentsReader.DEFAULT_PAGE_SIZE;
+
+    // maximum number of idle connections kept open to the API host
+    int maxConnections = ApiClient.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    // read timeout of a single request, in seconds
+    int timeoutSeconds = ApiClient.DEFAULT_READ_TIMEOUT_MILLIS / 1000;
+
+    // how long user, share and folder representations are reused, in seconds
+    long metadataTtlSeconds = MetadataCache.DEFAULT_TTL_MILLIS / 1000;
+
+    // maximum number of API requests per second
+    double maxRequestRate = RequestScheduler.DEFAULT_MAX_RATE;
+
+    // maximum number of times a failed request is sent again
+    int maxRetries = RequestScheduler.DEFAULT_MAX_RETRIES;
+
+    // file of the content hashes of the transferred files
+    String hashIndexFile = new File(System.getProperty("user.home"), HashIndex.DEFAULT_INDEX_NAME).getPath();
+
+    // files selected by the download, find, du and stat commands, see
+    // EntryFilter; null for the default of the command
+    String filter;
+
+    // bandwidth cap of all the transfers in bytes per second, 0 for none
+    long bandwidthLimit = BandwidthGovernor.UNLIMITED;
+
+    // daily windows with their own bandwidth cap, see BandwidthGovernor
+    String bandwidthSchedule;
+
+    // directory of the shared content cache, null for no cache
+    String contentCacheDir;
+
+    // maximum total size of the content cache in bytes
+    long contentCacheBytes = ContentCache.DEFAULT_MAX_BYTES;
+
+    // hard link cached files to their destination instead of copying them
+    boolean contentCacheLinks;
+
+    // file of the listings of the remote folders polled for changes
+    String remoteIndexFile = new File(System.getProperty("user.home"), RemoteIndex.DEFAULT_INDEX_NAME).getPath();
+
+    // seconds between two polls for changes, 0 to poll once
+    long pollIntervalSeconds;
+
+    // steps every downloaded file goes through, see PostProcessor; null for
+    // none
+    String postProcess;
+
+    // number of downloaded files processed at the same time
+    int postProcessWorkers = PostProcessor.DEFAULT_WORKERS;
+
+    // number of downloaded files waiting for processing before the downloads
+    // are held back
+    int postProcessQueue = PostProcessor.DEFAULT_CAPACITY;
+
+    // loopback port the daemon accepts jobs on
+    int daemonPort = DaemonServer.DEFAULT_PORT;
+
+    // maximum number of daemon or batch jobs running at the same time
+    int daemonJobs = DaemonServer.DEFAULT_CONCURRENCY;
+
+    // output of the list and quota commands, see RecordWriter
+    String format = RecordWriter.TEXT;
+
+    // list the folder tree instead of a single folder
+    boolean recursive;
+
+    // print throughput and peak heap statistics when the transfer is done
+    boolean stats;
+}
@@ -0,0 +1,43 @@
+package com.sugarsync.sample.tool;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * @file UserRecord.java
+ *
+ *       The fields of the user information response used by the tool.
+ */
+class UserRecord {
+
+    final String username;
+    final long quotaLimit;
+    final long quotaUsage;
+    final String magicBriefcase;
+    final String receivedShares;
+
+    private UserRecord(Map<String, String> fields) {
+        this.username = fields.get("username");
+        this.quotaLimit = parseLong(fields.get("quota/limit"));
+        this.quotaUsage = parseLong(fields.get("quota/usage"));
+        this.magicBriefcase = fields.get("magicBriefcase");
+        this.receivedShares = fields.get("receivedShares");
+    }
+
+    /**
+     * Reads the user information in a single pass
+     *
+     * @param xml
+     *            the xml server response
+     * @return the user record
+     * @throws IOException
+     *             if the response is not well formed xml
+     */
+    static UserRecord parse(String xml) throws IOException {
+        return new UserRecord(StaxXml.readDocument(xml));
+    }
+
+    private static long parseLong(String value) {
+        return value == null || value.length() == 0 ? 0 : Long.parseLong(value);
+    }
+}